@@ -0,0 +1,104 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how bulk add scales with the number of threads.
+ * Usage: java gitlet.AddBenchmark [FILES] [FILE_SIZE]
+ * For every thread count from 1 to the number of available processors,
+ * creates a new repository with FILES random files of FILE_SIZE bytes,
+ * then runs "add *" in a separate gitlet process and prints the files added per second.
+ * @author Jiahao Qin
+ */
+public class AddBenchmark {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < processors; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(processors);
+
+        System.out.printf("%d files of %d bytes%n", files, fileSize);
+        System.out.printf("%8s %12s %12s%n", "threads", "millis", "files/sec");
+        for (int threads: threadCounts) {
+            File dir = Files.createTempDirectory("gitlet-add").toFile();
+            try {
+                writeRandomFiles(dir, files, fileSize);
+                run(dir, "init");
+                run(dir, "config", "core.threads", String.valueOf(threads));
+
+                long start = System.nanoTime();
+                run(dir, "add", "*");
+                long millis = (System.nanoTime() - start) / 1_000_000;
+
+                System.out.printf("%8d %12d %12.0f%n", threads, millis, files * 1000.0 / millis);
+            } finally {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    /**
+     * Write COUNT files of SIZE random bytes into DIR.
+     * @param dir
+     * @param count
+     * @param size
+     */
+    private static void writeRandomFiles(File dir, int count, int size) {
+        Random random = new Random(count);
+        byte[] content = new byte[size];
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(content);
+            Utils.writeContents(new File(dir, String.format("file%06d.bin", i)), content);
+        }
+    }
+
+    /**
+     * Run gitlet with the given arguments in DIR as a separate process.
+     * @param dir
+     * @param args
+     */
+    static void run(File dir, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(absoluteClassPath());
+        command.add("gitlet.Main");
+        command.addAll(List.of(args));
+
+        Process process = new ProcessBuilder(command).directory(dir)
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("gitlet " + String.join(" ", args) + " failed");
+        }
+    }
+
+    static String absoluteClassPath() {
+        List<String> paths = new ArrayList<>();
+        for (String path: System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!path.isEmpty()) {
+                paths.add(new File(path).getAbsolutePath());
+            }
+        }
+        return String.join(File.pathSeparator, paths);
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,101 @@
+package gitlet;
+
+import java.io.Serializable;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static gitlet.Utils.*;
+
+/**
+ * Compares the binary format of commits, trees and the index with Java serialization.
+ * Usage: java gitlet.CodecBenchmark [ENTRIES] [ITERATIONS]
+ * Builds a commit, a tree of ENTRIES files and an index of ENTRIES staged and
+ * tracked files, then for each prints the encoded size in both formats and the
+ * mean time to encode and to decode it, after a warm-up of ITERATIONS rounds.
+ * @author Jiahao Qin
+ */
+public class CodecBenchmark {
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Random random = new Random(entries);
+
+        Codec.Writer commit = new Codec.Writer(Codec.COMMIT);
+        commit.writeHash(randomHash(random)).writeVarint(1).writeHash(randomHash(random))
+                .writeString("Sun Oct 18 16:02:30 2026 +0000").writeString("benchmark commit");
+
+        Codec.Writer tree = new Codec.Writer(Codec.TREE);
+        tree.writeVarint(entries);
+        for (int i = 0; i < entries; i++) {
+            tree.writeString(String.format("file%06d.txt", i)).writeHash(randomHash(random));
+        }
+        tree.writeVarint(0);
+
+        Codec.Writer stage = new Codec.Writer(Codec.STAGE);
+        stage.writeVarint(entries);
+        for (int i = 0; i < entries; i++) {
+            stage.writeString(String.format("file%06d.txt", i)).writeHash(randomHash(random));
+        }
+        stage.writeVarint(0);
+        stage.writeVarint(entries);
+        for (int i = 0; i < entries; i++) {
+            stage.writeString(String.format("file%06d.txt", i)).writeHash(randomHash(random))
+                    .writeVarint(random.nextInt(1 << 20)).writeVarint(System.nanoTime())
+                    .writeString("(dev=803,ino=" + random.nextInt() + ")");
+        }
+
+        System.out.printf("%d entries, %d iterations%n", entries, iterations);
+        System.out.printf("%-8s %-8s %10s %12s %12s%n",
+                "object", "format", "bytes", "encode ns", "decode ns");
+        Commit c = Commit.decode(commit.toByteArray());
+        report("commit", c, c::encode, Commit::decode, Commit.class, iterations);
+        Tree t = Tree.decode(tree.toByteArray());
+        report("tree", t, t::encode, Tree::decode, Tree.class, iterations);
+        Stage s = Stage.decode(stage.toByteArray());
+        report("index", s, s::encode, Stage::decode, Stage.class, iterations);
+    }
+
+    private static <T extends Serializable> void report(String name, T object,
+                                                        Supplier<byte[]> encode,
+                                                        Function<byte[], T> decode,
+                                                        Class<T> type, int iterations) {
+        byte[] binary = encode.get();
+        byte[] serialized = serialize(object);
+        System.out.printf("%-8s %-8s %10d %12.0f %12.0f%n", name, "binary", binary.length,
+                time(() -> encode.get(), iterations),
+                time(() -> decode.apply(binary), iterations));
+        System.out.printf("%-8s %-8s %10d %12.0f %12.0f%n", name, "java", serialized.length,
+                time(() -> serialize(object), iterations),
+                time(() -> deserialize(serialized, type), iterations));
+    }
+
+    /**
+     * Return the mean nanoseconds taken by TASK, measured over ITERATIONS runs
+     * after as many runs to let the JIT compile it.
+     * @param task
+     * @param iterations
+     * @return
+     */
+    private static double time(Supplier<Object> task, int iterations) {
+        Object sink = null;
+        for (int i = 0; i < iterations; i++) {
+            sink = task.get();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = task.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == null) {
+            throw new IllegalStateException();
+        }
+        return (double) elapsed / iterations;
+    }
+
+    private static String randomHash(Random random) {
+        byte[] bytes = new byte[20];
+        random.nextBytes(bytes);
+        return HashIndex.toHex(bytes, 0);
+    }
+}
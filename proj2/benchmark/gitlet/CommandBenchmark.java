@@ -0,0 +1,201 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the latency and the allocation of gitlet commands on a synthetic repository.
+ * Usage: java gitlet.CommandBenchmark [FILES] [COMMITS] [BRANCHES] [RUNS]
+ * Generates a repository with FILES text files and BRANCHES branches, each with
+ * COMMITS commits on top of a common base commit. Each commit changes up to 10 files,
+ * and each branch only changes its own files, so merges have no conflicts.
+ * Then runs every measured command RUNS times, each in a separate gitlet process,
+ * and prints the median and the fastest wall time and the median allocation.
+ * The wall time includes starting the JVM, which the startup row measures alone.
+ * Allocation is the heap in use when the command exits, as printed with -Dgitlet.stats,
+ * with the Epsilon collector, which never frees memory.
+ * @author Jiahao Qin
+ */
+public class CommandBenchmark {
+    /** The number of files changed by each commit. */
+    private static final int CHANGED_FILES = 10;
+    /** The number of lines of each file. */
+    private static final int LINES = 20;
+
+    private static final List<String> MEASURED_JVM_OPTIONS = List.of("-Dgitlet.stats",
+            "-XX:+UnlockExperimentalVMOptions", "-XX:+UseEpsilonGC", "-Xmx2g");
+
+    private final File dir;
+    private final int files;
+    private final int branches;
+    private final Random random;
+
+    private CommandBenchmark(File dir, int files, int branches) {
+        this.dir = dir;
+        this.files = files;
+        this.branches = branches;
+        this.random = new Random(files);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int commits = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int branches = args.length > 2 ? Math.max(2, Integer.parseInt(args[2])) : 4;
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        File dir = Files.createTempDirectory("gitlet-bench").toFile();
+        try {
+            CommandBenchmark benchmark = new CommandBenchmark(dir, files, branches);
+            long start = System.nanoTime();
+            benchmark.generate(commits);
+            System.out.printf("%d files, %d commits on each of %d branches, generated in %d ms%n",
+                    files, commits, branches, (System.nanoTime() - start) / 1_000_000);
+            System.out.printf("%-10s %10s %10s %12s%n",
+                    "command", "median ms", "min ms", "median MiB");
+            benchmark.measure(runs);
+        } finally {
+            AddBenchmark.deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * Generate the repository: the base commit of all the files, then the branches.
+     * @param commits the number of commits on each branch
+     */
+    private void generate(int commits) throws IOException, InterruptedException {
+        for (int i = 0; i < files; i++) {
+            writeFile(i);
+        }
+        AddBenchmark.run(dir, "init");
+        AddBenchmark.run(dir, "add", "*");
+        AddBenchmark.run(dir, "commit", "base");
+        for (int b = 1; b < branches; b++) {
+            AddBenchmark.run(dir, "branch", branchName(b));
+        }
+
+        for (int b = 0; b < branches; b++) {
+            if (b > 0) {
+                AddBenchmark.run(dir, "checkout", branchName(b));
+            }
+            for (int c = 0; c < commits; c++) {
+                List<String> changed = new ArrayList<>();
+                changed.add("add");
+                for (int k = 0; k < CHANGED_FILES; k++) {
+                    int i = random.nextInt(files / branches + 1) * branches + b;
+                    if (i < files) {
+                        changed.add(writeFile(i));
+                    }
+                }
+                if (changed.size() > 1) {
+                    AddBenchmark.run(dir, changed.toArray(new String[0]));
+                    AddBenchmark.run(dir, "commit", branchName(b) + " commit " + c);
+                }
+            }
+        }
+        AddBenchmark.run(dir, "checkout", "master");
+    }
+
+    /**
+     * Run every measured command RUNS times and print its results.
+     * @param runs
+     */
+    private void measure(int runs) throws IOException, InterruptedException {
+        report("startup", runs, i -> new String[0]);
+        report("status", runs, i -> new String[] {"status"});
+        report("log", runs, i -> new String[] {"log"});
+        report("add", runs, i -> new String[] {"add", writeFile(0)});
+        report("commit", runs, i -> {
+            AddBenchmark.run(dir, "add", writeFile(0));
+            return new String[] {"commit", "benchmark commit " + i};
+        });
+        report("checkout", runs, i -> {
+            if (i > 0) {
+                AddBenchmark.run(dir, "checkout", "master");
+            }
+            return new String[] {"checkout", branchName(1)};
+        });
+        AddBenchmark.run(dir, "checkout", "master");
+
+        String tip = Utils.readContentsAsString(new File(dir, ".gitlet/refs/heads/master"));
+        report("merge", runs, i -> {
+            AddBenchmark.run(dir, "reset", tip);
+            return new String[] {"merge", branchName(1)};
+        });
+    }
+
+    /** Prepares the I-th run of a command, and returns its arguments. */
+    private interface Setup {
+        String[] prepare(int i) throws IOException, InterruptedException;
+    }
+
+    private void report(String name, int runs, Setup setup)
+            throws IOException, InterruptedException {
+        long[] nanos = new long[runs];
+        long[] allocated = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            String[] args = setup.prepare(i);
+            long start = System.nanoTime();
+            allocated[i] = runMeasured(args);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        Arrays.sort(allocated);
+        System.out.printf("%-10s %10.1f %10.1f %12.1f%n", name, nanos[runs / 2] / 1e6,
+                nanos[0] / 1e6, allocated[runs / 2] / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Run gitlet with the given arguments in a separate process with statistics
+     * enabled, and return the heap in use when it exited.
+     * @param args
+     * @return
+     */
+    private long runMeasured(String[] args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.addAll(MEASURED_JVM_OPTIONS);
+        command.add("-cp");
+        command.add(AddBenchmark.absoluteClassPath());
+        command.add("gitlet.Main");
+        command.addAll(List.of(args));
+
+        Process process = new ProcessBuilder(command).directory(dir)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        String stats = new String(process.getErrorStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("gitlet " + String.join(" ", args) + " failed");
+        }
+        for (String line: stats.split("\n")) {
+            if (line.startsWith("heap.used: ")) {
+                return Long.parseLong(line.substring("heap.used: ".length()).trim());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Write new random lines to the I-th file, and return its name.
+     * @param i
+     * @return
+     */
+    private String writeFile(int i) {
+        StringBuilder content = new StringBuilder();
+        for (int line = 0; line < LINES; line++) {
+            content.append("line ").append(line).append(' ')
+                    .append(Long.toHexString(random.nextLong())).append('\n');
+        }
+        String name = String.format("file%06d.txt", i);
+        Utils.writeContents(new File(dir, name), content.toString());
+        return name;
+    }
+
+    private static String branchName(int b) {
+        return b == 0 ? "master" : "branch" + b;
+    }
+}
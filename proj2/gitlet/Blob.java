@@ -1,8 +1,29 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import static gitlet.Repository.CWD;
 import static gitlet.Repository.OBJECT_DIR;
@@ -13,6 +34,7 @@ import static gitlet.Utils.*;
  * @author Jiahao Qin
  */
 public class Blob implements Comparable<Blob>, Serializable {
+    private static final long serialVersionUID = 3482866710177115738L;
 
     /**
      * Compare two blobs are same by their sha1 hash.
@@ -40,6 +62,395 @@ public class Blob implements Comparable<Blob>, Serializable {
         return !isSame(a, b);
     }
 
+    /** The kind of a blob record which holds the whole compressed content. */
+    private static final byte FULL = 0;
+    /** The kind of a blob record which holds a compressed delta against a base blob. */
+    private static final byte DELTA = 1;
+    /**
+     * The kind of a blob record which lists the chunks of the content, see Chunks.
+     * Each chunk is its raw hash and its length (int).
+     */
+    private static final byte CHUNKED = 2;
+    /** The length of a chunk in a chunked record. */
+    private static final int CHUNK_ENTRY = 24;
+    /** The length of the header of a delta record: kind, depth and the raw base hash. */
+    private static final int DELTA_HEADER = 22;
+    /** The largest depth of a delta record, which stores its depth in one unsigned byte. */
+    private static final int MAX_DEPTH = 255;
+    /** The size of buffers used to stream content. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** The bytes which Java serialization writes before the length of a byte array. */
+    private static final byte[] SERIALIZED_PREFIX;
+
+    static {
+        byte[] empty = serialize(new byte[0]);
+        SERIALIZED_PREFIX = Arrays.copyOf(empty, empty.length - 4);
+    }
+
+    /**
+     * Return the loose object of the blob with the given hash.
+     * Blobs are stored as records in fan-out directories like commits.
+     * @param hash
+     * @return
+     */
+    static File objectFile(String hash) {
+        return join(OBJECT_DIR, "blobs", hash.substring(0, 2), hash.substring(2));
+    }
+
+    /**
+     * Verify whether the blob with the given hash is stored in the repository.
+     * @param hash
+     * @return
+     */
+    static boolean exists(String hash) {
+        return objectFile(hash).exists() || join(OBJECT_DIR, "blobs", hash).exists()
+                || Pack.contains(hash);
+    }
+
+    /**
+     * Make the blob with the given hash, and the bases and chunks its record refers to,
+     * count as new for gc, see Pack.freshen. Returns false if the blob is not stored.
+     * @param hash
+     * @return
+     */
+    static boolean freshen(String hash) {
+        if (!Pack.freshen(hash, Pack.BLOB) && !Pack.freshen(hash, Pack.RAW_BLOB)) {
+            return false;
+        }
+        forEachReference(hash, Blob::freshen, chunk -> Pack.freshen(chunk, Pack.CHUNK));
+        return true;
+    }
+
+    /**
+     * Return the content of the blob with the given hash, resolving its delta chain.
+     * Blobs saved before records were introduced are stored raw in .gitlet/objects/blobs.
+     * @param hash
+     * @return
+     */
+    static byte[] readContent(String hash) {
+        List<byte[]> deltas = new ArrayList<>();
+        String current = hash;
+        byte[] result;
+        while (true) {
+            byte[] record = readRecord(current);
+            if (record == null) {
+                result = readRaw(current);
+                break;
+            }
+            if (record[0] == FULL) {
+                result = inflate(record, 2);
+                break;
+            }
+            if (record[0] == CHUNKED) {
+                try (InputStream in = openChunks(Arrays.copyOfRange(record, 2, record.length))) {
+                    result = in.readAllBytes();
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e.getMessage());
+                }
+                break;
+            }
+            deltas.add(inflate(record, DELTA_HEADER));
+            current = HashIndex.toHex(record, 2);
+        }
+
+        for (int i = deltas.size() - 1; i >= 0; i--) {
+            result = Delta.apply(result, deltas.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Pass the objects which the record of the blob with the given hash refers to:
+     * the base of a delta record to BASE, and the chunks of a chunked record to CHUNK.
+     * Raw blobs and full records refer to nothing.
+     * @param hash
+     * @param base
+     * @param chunk
+     */
+    static void forEachReference(String hash, Consumer<String> base, Consumer<String> chunk) {
+        try (InputStream in = openRecord(hash)) {
+            if (in == null) {
+                return;
+            }
+            int kind = in.read();
+            in.read();
+            if (kind == DELTA) {
+                base.accept(HashIndex.toHex(in.readNBytes(DELTA_HEADER - 2), 0));
+            } else if (kind == CHUNKED) {
+                byte[] entries = in.readAllBytes();
+                for (int i = 0; i < entries.length; i += CHUNK_ENTRY) {
+                    chunk.accept(HashIndex.toHex(entries, i));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Return the content of the blob with the given hash as a stream.
+     * Full records, chunked records and raw blobs are streamed from disk, so their
+     * content is never held in memory as a whole. Delta records are bounded by delta.maxSize,
+     * so they are rebuilt in memory.
+     * @param hash
+     * @return
+     */
+    static InputStream openContent(String hash) {
+        InputStream record = openRecord(hash);
+        if (record == null) {
+            return openRaw(hash);
+        }
+
+        try {
+            int kind = record.read();
+            if (kind == FULL) {
+                record.read();
+                return new InflaterInputStream(record);
+            }
+            if (kind == CHUNKED) {
+                record.read();
+                byte[] chunks = record.readAllBytes();
+                record.close();
+                return openChunks(chunks);
+            }
+            record.close();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return new ByteArrayInputStream(readContent(hash));
+    }
+
+    /**
+     * Return the content listed by a chunked record as a stream, which opens
+     * each chunk only once the previous one has been read.
+     * @param entries the chunk entries of the record, after its kind and depth
+     * @return
+     */
+    private static InputStream openChunks(byte[] entries) {
+        List<String> hashes = new ArrayList<>();
+        for (int i = 0; i < entries.length; i += CHUNK_ENTRY) {
+            hashes.add(HashIndex.toHex(entries, i));
+        }
+        Iterator<String> iterator = hashes.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return Chunks.open(iterator.next());
+            }
+        });
+    }
+
+    /**
+     * Return the record of the blob with the given hash,
+     * or null if the blob is stored raw.
+     * @param hash
+     * @return
+     */
+    private static byte[] readRecord(String hash) {
+        try (InputStream in = openRecord(hash)) {
+            return in == null ? null : in.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Open the record of the blob with the given hash,
+     * or return null if the blob is stored raw.
+     * @param hash
+     * @return
+     */
+    private static InputStream openRecord(String hash) {
+        File object = objectFile(hash);
+        if (object.exists()) {
+            return openFile(object);
+        }
+        if (Pack.typeOf(hash) == Pack.BLOB) {
+            return Pack.open(hash);
+        }
+        return null;
+    }
+
+    private static byte[] readRaw(String hash) {
+        try (InputStream in = openRaw(hash)) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static InputStream openRaw(String hash) {
+        File object = join(OBJECT_DIR, "blobs", hash);
+        if (object.exists()) {
+            return openFile(object);
+        }
+        if (Pack.typeOf(hash) == Pack.RAW_BLOB) {
+            return Pack.open(hash);
+        }
+        // a partial clone fetches the blobs it misses when they are first read
+        if (!exists(hash) && Remote.fetchBlobs(List.of(hash)) && exists(hash)) {
+            return openContent(hash);
+        }
+        throw error("Missing blob %s.", hash);
+    }
+
+    private static InputStream openFile(File file) {
+        try {
+            return new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Return the length of the delta chain of the blob with the given hash.
+     * Only the header of its record is read.
+     * @param hash
+     * @return
+     */
+    private static int depthOf(String hash) {
+        try (InputStream in = openRecord(hash)) {
+            if (in == null) {
+                return 0;
+            }
+            in.read();
+            return in.read();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Return a delta record of DATA against BASE, or null if delta encoding is not worthwhile.
+     * @param base
+     * @param data
+     * @return
+     */
+    private static byte[] deltaRecord(Blob base, byte[] data) {
+        int maxDepth = Math.min(Config.getInt("delta.maxDepth", 10), MAX_DEPTH);
+        if (!exists(base.hash)) {
+            return null;
+        }
+
+        int depth = depthOf(base.hash) + 1;
+        if (depth > maxDepth) {
+            return null;
+        }
+
+        byte[] baseContent = base.getContent();
+        if (baseContent.length > maxDeltaSize()) {
+            return null;
+        }
+
+        byte[] delta = Delta.create(baseContent, data);
+        if (delta.length > data.length / 2) {
+            return null;
+        }
+
+        byte[] header = new byte[DELTA_HEADER];
+        header[0] = DELTA;
+        header[1] = (byte) depth;
+        System.arraycopy(HashIndex.toBytes(base.hash), 0, header, 2, 20);
+        return concat(header, deflate(delta));
+    }
+
+    /**
+     * Verify whether files of the given size are split into chunks. Chunking is
+     * enabled by chunking.enabled, for files of at least chunking.minFileSize bytes.
+     * @param size
+     * @return
+     */
+    private static boolean isChunked(long size) {
+        return Boolean.parseBoolean(Config.get("chunking.enabled", "false"))
+                && size >= Config.getInt("chunking.minFileSize", 1024 * 1024);
+    }
+
+    /**
+     * Split FILE into chunks, save the chunks which are not stored yet
+     * and return the record listing them. Stored and reused chunks are counted in Stats.
+     * @param file
+     * @return
+     */
+    private static byte[] chunkedRecord(File file) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(CHUNKED);
+        record.write(0);
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            Chunks.split(in, (buffer, offset, length) -> {
+                String chunk = Chunks.hashOf(buffer, offset, length);
+                boolean saved = Chunks.save(chunk, buffer, offset, length);
+                record.write(HashIndex.toBytes(chunk));
+                record.write(ByteBuffer.allocate(4).putInt(length).array());
+                Stats.add("chunks.total", 1);
+                Stats.add("chunks.totalBytes", length);
+                if (!saved) {
+                    Stats.add("chunks.reused", 1);
+                    Stats.add("chunks.reusedBytes", length);
+                }
+            });
+        }
+        return record.toByteArray();
+    }
+
+    /**
+     * Return the maximum size of files which are delta encoded.
+     * @return
+     */
+    private static int maxDeltaSize() {
+        return Config.getInt("delta.maxSize", 16 * 1024 * 1024);
+    }
+
+    private static byte[] deflate(byte[] data) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(stream)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return stream.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] record, int offset) {
+        try (InflaterInputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(record, offset, record.length - offset))) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static byte[] concat(byte[] header, byte[] body) {
+        byte[] result = Arrays.copyOf(header, header.length + body.length);
+        System.arraycopy(body, 0, result, header.length, body.length);
+        return result;
+    }
+
+    /**
+     * Return the bytes which Java serialization writes before the content of a byte array
+     * of the given length. Blob hashes were first computed as the hash of the serialized
+     * content, so hashing this header and then the content gives the same hash
+     * without reading the whole file into memory.
+     * @param length
+     * @return
+     */
+    private static byte[] serializedHeader(long length) {
+        ByteBuffer header;
+        if (length <= Integer.MAX_VALUE) {
+            header = ByteBuffer.allocate(SERIALIZED_PREFIX.length + 4);
+            header.put(SERIALIZED_PREFIX).putInt((int) length);
+        } else {
+            // too large to have ever been serialized as an array
+            header = ByteBuffer.allocate(SERIALIZED_PREFIX.length + 8);
+            header.put(SERIALIZED_PREFIX).putLong(length);
+        }
+        return header.array();
+    }
+
     /** The name of blob. */
     private String name;
     /** The Sha1 hash of blob. */
@@ -53,11 +464,46 @@ public class Blob implements Comparable<Blob>, Serializable {
      * @param content
      */
     public Blob(String name, File content) {
+        this(name, hashOf(content), content);
+    }
+
+    /**
+     * Create a new blob of which the hash is already known.
+     * @param name
+     * @param hash
+     * @param content
+     */
+    Blob(String name, String hash, File content) {
         this.name = name;
-        this.hash = sha1(serialize(readContents(content)));
+        this.hash = hash;
         this.content = content;
     }
 
+    /**
+     * Return the Sha1 hash of the given file as a blob.
+     * @param file
+     * @return
+     */
+    static String hashOf(File file) {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(serializedHeader(Files.size(file.toPath())));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+            }
+
+            StringBuilder sb = new StringBuilder(UID_LENGTH);
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
     public String getName() {
         return name;
     }
@@ -66,33 +512,82 @@ public class Blob implements Comparable<Blob>, Serializable {
         return hash;
     }
 
-    public File getContent() {
-        if (content == null) {
-            content = join(OBJECT_DIR, "blobs", hash);
-        }
-        return content;
+    /**
+     * Read the content of blob from its loose object,
+     * or from the pack if it has been packed. A partial clone
+     * first fetches the blob from its remote if it is missing.
+     * @return
+     */
+    public byte[] getContent() {
+        return readContent(hash);
     }
 
     /**
-     * Copy blob from .gitlet/objects/blobs to working directory.
+     * Copy blob from .gitlet/objects to working directory.
+     * The content is streamed, so large files are never held in memory.
      */
     public void copyToWorkingDir() {
-        try {
-            content = join(OBJECT_DIR, "blobs", hash);
-            File file = new File(CWD, name);
-            file.createNewFile();
-            writeContents(file, readContents(content));
+        File file = WorkingTree.prepare(name);
+        try (InputStream in = openContent(hash);
+             OutputStream out = Files.newOutputStream(file.toPath())) {
+            in.transferTo(out);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Save blob to .gitlet/objects/blobs
+     * Save blob to .gitlet/objects/blobs as a compressed full record.
      */
     public void save() {
-        File object = join(OBJECT_DIR, "blobs", hash);
-        writeContents(object, readContents(content));
+        save(null);
+    }
+
+    /**
+     * Save blob to .gitlet/objects/blobs, encoded as a delta against BASE,
+     * the previous version of the same file, if that saves enough space
+     * and the delta chain of BASE is not too deep. BASE may be null.
+     * Files larger than delta.maxSize are deflated as a stream with constant memory.
+     * The record is written to a temporary file which is then renamed,
+     * so an interrupted save never leaves a truncated object.
+     * @param base
+     */
+    public void save(Blob base) {
+        // a stored blob may be unreachable, so it is freshened before it is reused
+        if (freshen(hash)) {
+            return;
+        }
+
+        File object = objectFile(hash);
+        object.getParentFile().mkdir();
+        try {
+            Path temp = Files.createTempFile(object.getParentFile().toPath(), "tmp", null);
+            byte[] record = null;
+            if (isChunked(content.length())) {
+                record = chunkedRecord(content);
+            } else if (base != null && content.length() <= maxDeltaSize()) {
+                record = deltaRecord(base, readContents(content));
+            }
+
+            if (record != null) {
+                writeContents(temp.toFile(), record);
+            } else {
+                try (InputStream in = Files.newInputStream(content.toPath());
+                     OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE)) {
+                    out.write(FULL);
+                    out.write(0);
+                    try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+                        in.transferTo(deflater);
+                    }
+                }
+            }
+
+            Files.move(temp, object.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Fsync.later(object);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
     }
 
     /**
@@ -101,7 +596,7 @@ public class Blob implements Comparable<Blob>, Serializable {
      * @return
      */
     public Boolean isSameContent(File file) {
-        return getHash().equals(sha1(serialize(readContents(file))));
+        return getHash().equals(hashOf(file));
     }
 
     @Override
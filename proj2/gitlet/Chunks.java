@@ -0,0 +1,186 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Repository.OBJECT_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Splits large files into content-defined chunks and stores the chunks.
+ * Boundaries are found with FastCDC: a gear hash is rolled over the content and a
+ * chunk ends where the hash has enough zero bits, with a stricter condition before
+ * the average size and a looser one after it, so chunk sizes cluster around the
+ * average. Since boundaries depend on the content only, an insertion or deletion
+ * only changes the chunks around it, and the other chunks are shared with
+ * the previous version of the file.
+ * A chunk is stored once, deflated, in .gitlet/objects/chunks, keyed by the hash of its content.
+ * @author Jiahao Qin
+ */
+class Chunks {
+    /** The minimum size of a chunk, except the last one. */
+    static final int MIN_SIZE = 16 * 1024;
+    /** The average size of a chunk. */
+    static final int AVERAGE_SIZE = 64 * 1024;
+    /** The maximum size of a chunk. */
+    static final int MAX_SIZE = 256 * 1024;
+
+    /** A boundary before the average size needs 18 zero bits, after it 14. */
+    private static final long MASK_SMALL = mask(18);
+    private static final long MASK_LARGE = mask(14);
+
+    /** The random value of each byte in the gear hash, fixed so that boundaries are stable. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6769746c6574L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** The high BITS bits set, which depend on the last 64 bytes rolled into the hash. */
+    private static long mask(int bits) {
+        return -1L << (64 - bits);
+    }
+
+    /** Receives the chunks of a file, in order. */
+    interface ChunkConsumer {
+        void accept(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Split the content of IN into chunks and pass them to ACTION in order.
+     * At most two maximum-size chunks are held in memory.
+     * @param in
+     * @param action
+     */
+    static void split(InputStream in, ChunkConsumer action) throws IOException {
+        byte[] buffer = new byte[2 * MAX_SIZE];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        while (true) {
+            if (!eof && end - start < MAX_SIZE) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                while (end < buffer.length) {
+                    int n = in.read(buffer, end, buffer.length - end);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    end += n;
+                }
+            }
+            if (start == end) {
+                return;
+            }
+
+            int length = cut(buffer, start, end - start);
+            action.accept(buffer, start, length);
+            start += length;
+        }
+    }
+
+    /**
+     * Return the length of the chunk which starts at OFFSET, given that LENGTH bytes
+     * are available, which must be at least MAX_SIZE unless they are the rest of the file.
+     */
+    private static int cut(byte[] buffer, int offset, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int limit = Math.min(length, MAX_SIZE);
+        int normal = Math.min(limit, AVERAGE_SIZE);
+
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Return the Sha1 hash of LENGTH bytes of BUFFER starting at OFFSET.
+     */
+    static String hashOf(byte[] buffer, int offset, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(buffer, offset, length);
+            return HashIndex.toHex(md.digest(), 0);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    static File objectFile(String hash) {
+        return join(OBJECT_DIR, "chunks", hash.substring(0, 2), hash.substring(2));
+    }
+
+    /**
+     * Save a chunk unless it is stored already, in which case it is freshened
+     * for gc instead, see Pack.freshen. Returns whether it was saved.
+     * @param hash the hash of the chunk
+     */
+    static boolean save(String hash, byte[] buffer, int offset, int length) {
+        if (Pack.freshen(hash, Pack.CHUNK)) {
+            return false;
+        }
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(length / 2);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(stream)) {
+            out.write(buffer, offset, length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+
+        File object = objectFile(hash);
+        object.getParentFile().mkdirs();
+        writeAtomically(object, stream.toByteArray());
+        return true;
+    }
+
+    /**
+     * Open the content of the chunk with the given hash,
+     * from its loose object or from the pack.
+     * @param hash
+     * @return
+     */
+    static InputStream open(String hash) {
+        File object = objectFile(hash);
+        InputStream in;
+        if (object.exists()) {
+            try {
+                in = new BufferedInputStream(Files.newInputStream(object.toPath()));
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        } else if (Pack.typeOf(hash) == Pack.CHUNK) {
+            in = Pack.open(hash);
+        } else {
+            throw error("Missing chunk %s.", hash);
+        }
+        return new InflaterInputStream(in);
+    }
+}
@@ -0,0 +1,86 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The thin client of the daemon: sends a command to the daemon of the repository in
+ * the current directory and prints its output, or runs the command itself, as Main,
+ * if no daemon is running. Usage: java gitlet.Client ARGS, with the same ARGS as Main.
+ * Only the few classes needed to talk to the daemon are loaded. See Daemon for the protocol.
+ * @author Jiahao Qin
+ */
+public class Client {
+    public static void main(String[] args) {
+        int code = forward(args);
+        if (code < 0) {
+            Main.main(args);
+            return;
+        }
+        System.out.flush();
+        System.exit(code);
+    }
+
+    /**
+     * Send the command ARGS to the daemon and print its output.
+     * Returns its exit code, or -1 if no daemon is running, in which case nothing was sent.
+     * @param args
+     * @return
+     */
+    static int forward(String[] args) {
+        Path socket = Path.of(System.getProperty("user.dir"), ".gitlet", "daemon.sock");
+        if (!Files.exists(socket)) {
+            return -1;
+        }
+
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return -1;
+        }
+
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(args.length);
+            for (String arg: args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            byte[] buffer = new byte[8192];
+            while (true) {
+                int stream = in.readByte();
+                if (stream == 0) {
+                    return in.readInt();
+                }
+                OutputStream target = stream == 1 ? System.out : System.err;
+                for (int length = in.readInt(); length > 0; ) {
+                    int n = in.read(buffer, 0, Math.min(length, buffer.length));
+                    if (n < 0) {
+                        throw new IOException("The daemon closed the connection.");
+                    }
+                    target.write(buffer, 0, n);
+                    length -= n;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Lost the connection to the daemon: " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary format of commits, trees and the index.
+ * Every encoded object starts with a header: the magic bytes "gl", the version
+ * of the format and the type of the object. Strings are UTF-8 prefixed with
+ * their length, hashes are 20 raw bytes, and integers are unsigned varints.
+ * Objects written with Java serialization before this format existed start with
+ * the serialization magic instead, so readers can tell the two apart.
+ * @author Jiahao Qin
+ */
+class Codec {
+    /** The version of the format. */
+    static final byte VERSION = 1;
+
+    static final byte COMMIT = 'C';
+    static final byte TREE = 'T';
+    static final byte STAGE = 'S';
+
+    private static final byte MAGIC_0 = 'g';
+    private static final byte MAGIC_1 = 'l';
+
+    /**
+     * Verify whether BYTES hold an object written with Java serialization.
+     * @param bytes
+     * @return
+     */
+    static boolean isSerialized(byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == (byte) 0xac && bytes[1] == (byte) 0xed;
+    }
+
+    /**
+     * Writes an encoded object.
+     */
+    static class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Writer(byte type) {
+            out.write(MAGIC_0);
+            out.write(MAGIC_1);
+            out.write(VERSION);
+            out.write(type);
+        }
+
+        Writer writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+            return this;
+        }
+
+        Writer writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        Writer writeHash(String hash) {
+            byte[] bytes = HashIndex.toBytes(hash);
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Reads an encoded object.
+     */
+    static class Reader {
+        private final ByteBuffer buffer;
+
+        /**
+         * Start reading BYTES, which must hold an object of the given type.
+         * @param bytes
+         * @param type
+         */
+        Reader(byte[] bytes, byte type) {
+            buffer = ByteBuffer.wrap(bytes);
+            if (bytes.length < 4 || buffer.get() != MAGIC_0 || buffer.get() != MAGIC_1) {
+                throw new IllegalArgumentException("not a gitlet object");
+            }
+            byte version = buffer.get();
+            if (version > VERSION) {
+                throw Utils.error("Unsupported object version %d.", version);
+            }
+            if (buffer.get() != type) {
+                throw new IllegalArgumentException("unexpected object type");
+            }
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        int readInt() {
+            return (int) readVarint();
+        }
+
+        String readString() {
+            byte[] bytes = new byte[readInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        String readHash() {
+            byte[] bytes = new byte[20];
+            buffer.get(bytes);
+            return HashIndex.toHex(bytes, 0);
+        }
+
+        /**
+         * Verify whether anything is left to read, as a section added to a format
+         * after some objects were written is missing from them.
+         * @return
+         */
+        boolean hasRemaining() {
+            return buffer.hasRemaining();
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package gitlet;
 
 import java.io.File;
-import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -16,14 +17,87 @@ import static gitlet.Utils.join;
  * @author Jiahao Qin
  */
 public class Commit implements Serializable {
+    private static final long serialVersionUID = -6279338903614493491L;
+
+    /** The format of timestamp. */
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy xxxx");
+
+    /** Decoded commits, keyed by hash. Bounded by the cache.commits config. */
+    private static final LruCache<String, Commit> CACHE =
+            new LruCache<>(Config.getInt("cache.commits", 4096));
 
     private static Commit currentCommit;
 
+    /**
+     * The shallow file of a shallow clone, which lists the commits whose parents
+     * were not copied, one hash per line. Those commits are treated as root commits.
+     */
+    static final File SHALLOW_FILE = join(GITLET_DIR, "shallow");
+    /** The hashes listed in the shallow file, read when first needed. */
+    private static Set<String> shallow;
+
     public static void init() {
         Commit commit = new Commit();
         commit.save();
     }
 
+    /**
+     * Forget the current commit, so that it is read again from HEAD.
+     * Cached commits stay valid, since a hash always names the same commit,
+     * unless CLEARCACHE is set, as when gc may have removed some of them.
+     * @param clearCache
+     */
+    static void reset(boolean clearCache) {
+        currentCommit = null;
+        if (clearCache) {
+            CACHE.clear();
+        }
+    }
+
+    /**
+     * Verify whether the commit with the given hash is at the boundary of a
+     * shallow clone, so that its parents are missing.
+     * @param hash
+     * @return
+     */
+    static synchronized boolean isShallow(String hash) {
+        if (shallow == null) {
+            shallow = new HashSet<>();
+            if (SHALLOW_FILE.exists()) {
+                for (String line: readContentsAsString(SHALLOW_FILE).split("\n")) {
+                    if (!line.isEmpty()) {
+                        shallow.add(line);
+                    }
+                }
+            }
+        }
+        return shallow.contains(hash);
+    }
+
+    /**
+     * Add the commits with the given hashes to the shallow file.
+     * @param hashes
+     */
+    static synchronized void addShallow(Collection<String> hashes) {
+        isShallow(null);
+        if (!shallow.addAll(hashes)) {
+            return;
+        }
+        StringBuilder content = new StringBuilder();
+        for (String hash: new TreeSet<>(shallow)) {
+            content.append(hash).append('\n');
+        }
+        writeAtomically(SHALLOW_FILE, content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Forget the shallow commits, so that the shallow file is read again.
+     */
+    static synchronized void resetShallow() {
+        shallow = null;
+    }
+
     public static Commit getCurrentCommit() {
         if (currentCommit == null) {
             File branch = Head.getInstance().getBranch();
@@ -37,44 +111,90 @@ public class Commit implements Serializable {
         return getCommitFromHash(hash);
     }
 
+    /**
+     * Read the commit with the given hash from its loose object,
+     * or from the pack if it has been packed.
+     * Commits are cached, so the returned commit is shared and must not be modified.
+     * @param hash
+     * @return
+     */
     public static Commit getCommitFromHash(String hash) {
+        Commit commit = CACHE.get(hash);
+        if (commit == null) {
+            commit = readCommit(hash);
+            CACHE.put(hash, commit);
+        }
+        return commit;
+    }
+
+    /**
+     * Return the hits and misses of the commit cache, for diagnosis.
+     * @return
+     */
+    public static String cacheStats() {
+        return "commit cache: " + CACHE;
+    }
+
+    private static Commit readCommit(String hash) {
         String prefix = hash.substring(0, 2);
         File object = join(OBJECT_DIR, "commits", prefix, hash.substring(2));
-        Commit commit = readObject(object, Commit.class);
+        byte[] content = object.exists() ? readContents(object) : Pack.read(hash);
+        Commit commit = decode(content);
         commit.setHash(hash);
         return commit;
     }
 
-    public static Commit getCommitFromHashPrefix(String commitId) {
-        int length = commitId.length();
-        if (length < 4) {
-            return null;
+    /**
+     * Decode a commit written in the binary format, or with Java serialization
+     * as commits were written before the binary format existed.
+     * @param bytes
+     * @return
+     */
+    static Commit decode(byte[] bytes) {
+        if (Codec.isSerialized(bytes)) {
+            return deserialize(bytes, Commit.class);
         }
 
-        String prefix = commitId.substring(0, 2);
-        File prefixDir = join(OBJECT_DIR, "commits", prefix);
-
-        if (!prefixDir.exists()) {
-            return null;
+        Codec.Reader reader = new Codec.Reader(bytes, Codec.COMMIT);
+        String tree = reader.readHash();
+        ArrayList<String> parentIds = new ArrayList<>();
+        for (int i = reader.readInt(); i > 0; i--) {
+            parentIds.add(reader.readHash());
         }
+        String timestamp = reader.readString();
+        String message = reader.readString();
+        return new Commit(message, timestamp, parentIds, tree);
+    }
 
-        List<String> results = new LinkedList<>();
-
-        for (String hashFragment : plainFilenamesIn(prefixDir)) {
-            if (hashFragment.startsWith(commitId.substring(2))) {
-                results.add(hashFragment);
-            }
+    /**
+     * Return the commit whose hash starts with the given id, which may be
+     * abbreviated to any length. Returns null if no commit or more than one
+     * commit matches.
+     * @param commitId
+     * @return
+     */
+    public static Commit getCommitFromHashPrefix(String commitId) {
+        if (commitId.isEmpty() || commitId.length() > UID_LENGTH
+                || !commitId.matches("[0-9a-f]+")) {
+            return null;
         }
 
+        List<String> results = CommitIndex.findByPrefix(commitId);
         if (results.size() != 1) {
             return null;
         }
 
-        String lastPath = results.get(0);
-        File object = join(prefixDir, lastPath);
-        Commit commit = readObject(object, Commit.class);
-        commit.setHash(prefix + lastPath);
-        return commit;
+        return getCommitFromHash(results.get(0));
+    }
+
+    /**
+     * Verify whether the commit with the given hash is stored in the repository.
+     * @param hash
+     * @return
+     */
+    static boolean exists(String hash) {
+        return join(OBJECT_DIR, "commits", hash.substring(0, 2), hash.substring(2)).exists()
+                || Pack.contains(hash);
     }
 
     public static List<String> getAllCommitHashes() {
@@ -87,6 +207,7 @@ public class Commit implements Serializable {
             }
         }
 
+        hashes.addAll(Pack.hashesOf(Pack.COMMIT));
         return hashes;
     }
 
@@ -98,36 +219,27 @@ public class Commit implements Serializable {
         return p.hash.equals(q.hash);
     }
 
+    /**
+     * Find the split point of the two given commits,
+     * using the commit graph instead of reading every ancestor.
+     * @param headCommit
+     * @param otherCommit
+     * @return
+     */
     public static Commit findSplitPoint(Commit headCommit, Commit otherCommit) {
-        Queue<Commit> queue = new LinkedList<>();
-        queue.add(headCommit);
-        queue.add(otherCommit);
-
-        HashMap<String, String> commitMap = new HashMap<>();
-
-        while (!queue.isEmpty()) {
-            Commit commit = queue.remove();
-            String hash = commit.getHash();
-            String branchName = commit.getBranchName();
-
-            if (commitMap.containsKey(hash) && !commitMap.get(hash).equals(branchName)) {
-                return commit;
-            }
-
-            if (!commitMap.containsKey(hash)) {
-                commitMap.put(hash, branchName);
-                for (Commit parent : commit.parents()) {
-                    queue.add(parent);
-                }
-            }
+        String hash = CommitGraph.getInstance().mergeBase(headCommit.getHash(), otherCommit.getHash());
+        if (hash == null) {
+            return null;
         }
 
-        return null;
+        return getCommitFromHash(hash);
     }
 
     private transient String hash;
-    private transient String branchName;
+    /** The files of commits made before trees were introduced, null for the others. */
     private TreeMap<String, Blob> blobs;
+    /** The hash of the root tree. */
+    private String tree;
     private String message;
     private String timestamp;
     private List<String> parentIds;
@@ -136,27 +248,18 @@ public class Commit implements Serializable {
         message = "initial commit";
         timestamp = "Wed Dec 31 16:00:00 1969 -0800";
         parentIds = new ArrayList<>();
-        blobs = new TreeMap<>();
+        tree = Tree.write(new TreeMap<>());
     }
 
-    private Commit(String message, ArrayList<String> parentIds, TreeMap<String, Blob> blobs) {
-        this.message = message;
-        this.timestamp = ZonedDateTime.now().format(
-                DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy xxxx"));
-        this.parentIds = parentIds;
-        this.blobs = blobs;
+    private Commit(String message, ArrayList<String> parentIds, String tree) {
+        this(message, ZonedDateTime.now().format(TIMESTAMP_FORMAT), parentIds, tree);
     }
 
-    public Commit[] parents() {
-        int length = parentIds.size();
-        Commit[] parents = new Commit[length];
-
-        for (int i = 0; i < length; i++) {
-            parents[i] = getCommitFromHash(parentIds.get(i));
-            parents[i].branchName = branchName;
-        }
-
-        return parents;
+    private Commit(String message, String timestamp, List<String> parentIds, String tree) {
+        this.message = message;
+        this.timestamp = timestamp;
+        this.parentIds = parentIds;
+        this.tree = tree;
     }
 
     /** Derives a new commit. */
@@ -166,9 +269,14 @@ public class Commit implements Serializable {
         commitHelper(msg, pIds);
     }
 
-    public void merge(Commit mergeCommit) {
-        String msg = "Merged " + mergeCommit.getBranchName()
-                + " into " + currentCommit.getBranchName() + ".";
+    /**
+     * Derives a merge commit of the given commit, the head of BRANCHNAME.
+     * @param mergeCommit
+     * @param branchName
+     */
+    public void merge(Commit mergeCommit, String branchName) {
+        String msg = "Merged " + branchName
+                + " into " + Head.getInstance().getBranchName() + ".";
         ArrayList<String> pIds = new ArrayList<>();
         pIds.add(currentCommit.getHash());
         pIds.add(mergeCommit.getHash());
@@ -179,12 +287,25 @@ public class Commit implements Serializable {
         return message;
     }
 
-    public void setBranchName(String branchName) {
-        this.branchName = branchName;
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Return the parents of this commit, or none if it is at the boundary
+     * of a shallow clone, since they are missing.
+     * @return
+     */
+    public List<String> getParentIds() {
+        return isShallow(hash) ? List.of() : parentIds;
     }
 
-    public String getBranchName() {
-        return branchName;
+    /**
+     * Return the timestamp in seconds since the epoch.
+     * @return
+     */
+    public long getEpochSecond() {
+        return ZonedDateTime.parse(timestamp, TIMESTAMP_FORMAT).toEpochSecond();
     }
 
     public void setHash(String hash) {
@@ -195,72 +316,139 @@ public class Commit implements Serializable {
         return hash;
     }
 
-    public TreeMap<String, Blob> getBlobs() {
-        return blobs;
+    /**
+     * Return the hash of the root tree of this commit, or null if it was
+     * saved before trees existed and lists its blobs itself.
+     * @return
+     */
+    String getTree() {
+        return tree;
     }
 
-    public void recursiveLog() {
-        log();
+    /**
+     * Return the files tracked by this commit, keyed by their path.
+     * The map is read from the trees of the commit and belongs to the caller.
+     * @return
+     */
+    public TreeMap<String, Blob> getBlobs() {
+        if (tree == null) {
+            return new TreeMap<>(blobs);
+        }
+        return Tree.readFiles(tree);
+    }
 
-        if (parentIds.size() != 0) {
-            System.out.println();
-            Commit parentCommit = getCommitFromHash(parentIds.get(0));
-            parentCommit.recursiveLog();
+    /**
+     * Print the log entries of the first-parent history starting at this commit,
+     * skipping the first SKIP entries and printing at most MAXCOUNT entries.
+     * The history is walked iteratively and stops as soon as enough entries are printed.
+     * @param out
+     * @param skip
+     * @param maxCount the number of entries to print, or a negative number for all of them
+     */
+    public void firstParentLog(PrintWriter out, int skip, int maxCount) {
+        Commit commit = this;
+        int printed = 0;
+        for (int i = 0; commit != null && printed != maxCount; i++) {
+            if (i >= skip) {
+                if (printed > 0) {
+                    out.println();
+                }
+                commit.log(out);
+                printed++;
+            }
+            List<String> parents = commit.getParentIds();
+            commit = parents.isEmpty() ? null : getCommitFromHash(parents.get(0));
         }
     }
 
-    public void log() {
-        System.out.println("===");
-        System.out.println("commit " + hash);
+    public void log(PrintWriter out) {
+        printLog(out, hash, parentIds, timestamp, message);
+    }
+
+    /**
+     * Print the log entry of a commit.
+     * @param out
+     * @param hash
+     * @param parentIds
+     * @param timestamp
+     * @param message
+     */
+    public static void printLog(PrintWriter out, String hash, List<String> parentIds,
+                                String timestamp, String message) {
+        out.println("===");
+        out.println("commit " + hash);
         if (parentIds.size() > 1) {
-            System.out.print("Merge:");
+            out.print("Merge:");
             for (String id: parentIds) {
-                System.out.print(" " + id.substring(0, 7));
+                out.print(" " + id.substring(0, 7));
             }
-            System.out.println();
+            out.println();
         }
-        System.out.println("Date: " + timestamp);
-        System.out.println(message);
+        out.println("Date: " + timestamp);
+        out.println(message);
     }
 
     private void advancePointer() {
-        Head.getInstance().advancePointer(hash);
+        String parent = parentIds.isEmpty() ? null : parentIds.get(0);
+        Head.getInstance().advancePointer(parent, hash);
     }
 
-    private void save() {
-        try {
-            setHash(sha1(serialize(this)));
-            String prefix = hash.substring(0, 2);
-            File prefixDir = join(OBJECT_DIR, "commits", prefix);
-            prefixDir.mkdir();
-            File object = join(prefixDir, hash.substring(2));
-            object.createNewFile();
-            writeObject(object, this);
-
-            advancePointer();
-            Stage.initStage();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Encode this commit in the binary format.
+     * @return
+     */
+    byte[] encode() {
+        Codec.Writer writer = new Codec.Writer(Codec.COMMIT);
+        writer.writeHash(tree);
+        writer.writeVarint(parentIds.size());
+        for (String parentId: parentIds) {
+            writer.writeHash(parentId);
         }
+        writer.writeString(timestamp);
+        writer.writeString(message);
+        return writer.toByteArray();
     }
 
-    private void commitHelper(String msg, ArrayList<String> pIds) {
-        TreeMap<String, Blob> commitBlobs = new TreeMap<>();
-
-        commitBlobs.putAll(currentCommit.getBlobs());
+    /**
+     * Save the commit, then move the current branch to it and clear the index.
+     * The branch is only moved if it still points to the first parent,
+     * so a concurrent commit on the same branch is never lost.
+     */
+    private void save() {
+        byte[] content = encode();
+        setHash(sha1(content));
+        String prefix = hash.substring(0, 2);
+        File prefixDir = join(OBJECT_DIR, "commits", prefix);
+        prefixDir.mkdir();
+        writeAtomically(join(prefixDir, hash.substring(2)), content);
+        CACHE.put(hash, this);
+        CommitGraph.getInstance().add(this);
+        CommitLog.append(this);
+
+        advancePointer();
+        Stage.initStage();
+    }
 
+    private void commitHelper(String msg, ArrayList<String> pIds) {
         // merge files staged for addition or removal
         Stage index = Stage.getInstance();
         if (index.isEmpty()) {
             exitWithError("No changes added to the commit.");
         }
 
-        commitBlobs.putAll(index.getStaged());
-        for (String name: index.getRemoval()) {
-            commitBlobs.remove(name);
+        String commitTree;
+        if (currentCommit.tree != null) {
+            commitTree = Tree.update(currentCommit.tree, index.getStaged(), index.getRemoval());
+        } else {
+            TreeMap<String, Blob> commitBlobs = currentCommit.getBlobs();
+            commitBlobs.putAll(index.getStaged());
+            for (String name: index.getRemoval()) {
+                commitBlobs.remove(name);
+            }
+            commitTree = Tree.write(commitBlobs);
         }
 
-        Commit commit = new Commit(msg, pIds, commitBlobs);
+        Commit commit = new Commit(msg, pIds, commitTree);
         commit.save();
     }
 }
\ No newline at end of file
@@ -0,0 +1,393 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import static gitlet.Repository.OBJECT_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Represents the commit graph, a side file which records for every commit its
+ * parents, generation number and timestamp, so that ancestry queries can walk
+ * the history without reading commit objects.
+ * The file is append-only, a commit is always recorded after its parents:
+ *   hash (20 raw bytes), generation (int), timestamp (long, epoch seconds),
+ *   the number of parents (byte), the position of each parent (int).
+ * The generation of a root commit is 1, the generation of any other commit
+ * is 1 more than the maximum generation of its parents.
+ * Selected commits also have a reachability bitmap, the positions of all their
+ * ancestors, written by gc in a second side file:
+ *   hash (20 raw bytes), position (int), the bitmap (see CompressedBitmap).
+ * A walk over ancestors stops at a commit with a bitmap and takes its bitmap instead.
+ * Rows are appended while holding the lock of the graph file, after reading the rows
+ * other processes have appended since, so that positions always name the right rows.
+ * @author Jiahao Qin
+ */
+class CommitGraph {
+    /** The commit graph file. */
+    static final File GRAPH_FILE = join(OBJECT_DIR, "info", "commit-graph");
+    /** The reachability bitmaps file. */
+    static final File BITMAP_FILE = join(OBJECT_DIR, "info", "commit-bitmaps");
+    /** The length of a row without the positions of its parents. */
+    private static final int ROW_HEADER = 33;
+    /** The first-parent distance from a branch to the nearest of its ancestors with a bitmap. */
+    private static final int BITMAP_SPACING = 64;
+
+    private static CommitGraph instance;
+
+    static synchronized CommitGraph getInstance() {
+        if (instance == null) {
+            instance = new CommitGraph();
+        }
+        return instance;
+    }
+
+    /**
+     * Forget the loaded graph and bitmaps, so that they are read again.
+     */
+    static synchronized void reset() {
+        instance = null;
+    }
+
+    /** The hashes of commits, in the order they are recorded. */
+    private final List<String> hashes = new ArrayList<>();
+    /** The position of each commit. */
+    private final HashMap<String, Integer> positions = new HashMap<>();
+    private final List<Integer> generations = new ArrayList<>();
+    private final List<Long> timestamps = new ArrayList<>();
+    private final List<int[]> parents = new ArrayList<>();
+    /** The reachability bitmaps, keyed by position, read when first needed. */
+    private HashMap<Integer, CompressedBitmap> bitmaps;
+    /** The length of the graph file which has been read. */
+    private long loadedLength;
+
+    private CommitGraph() {
+        load();
+    }
+
+    /**
+     * Read the rows appended to the graph file since it was last read.
+     * A row which another process is still appending is left for the next read.
+     */
+    private void load() {
+        if (!GRAPH_FILE.exists() || GRAPH_FILE.length() == loadedLength) {
+            return;
+        }
+
+        ByteBuffer buffer;
+        try (InputStream in = Files.newInputStream(GRAPH_FILE.toPath())) {
+            in.skipNBytes(loadedLength);
+            buffer = ByteBuffer.wrap(in.readAllBytes());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        byte[] hash = new byte[20];
+        while (buffer.remaining() >= ROW_HEADER
+                && buffer.remaining() >= ROW_HEADER + 4 * buffer.get(buffer.position() + 32)) {
+            buffer.get(hash);
+            int generation = buffer.getInt();
+            long timestamp = buffer.getLong();
+            int[] parentPositions = new int[buffer.get()];
+            for (int i = 0; i < parentPositions.length; i++) {
+                parentPositions[i] = buffer.getInt();
+            }
+            put(HashIndex.toHex(hash, 0), generation, timestamp, parentPositions);
+        }
+        loadedLength += buffer.position();
+    }
+
+    /**
+     * Record a new commit. Its parents are recorded first if they are missing.
+     * The rows are appended at once, under the lock of the graph file.
+     * @param commit
+     */
+    public void add(Commit commit) {
+        if (positions.containsKey(commit.getHash())) {
+            return;
+        }
+
+        GRAPH_FILE.getParentFile().mkdir();
+        LockFile lock = LockFile.acquire(GRAPH_FILE);
+        try {
+            load();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            Deque<Commit> stack = new ArrayDeque<>();
+            stack.push(commit);
+            while (!stack.isEmpty()) {
+                Commit next = stack.peek();
+                boolean ready = true;
+                for (String parentId: next.getParentIds()) {
+                    if (!positions.containsKey(parentId)) {
+                        stack.push(Commit.getCommitFromHash(parentId));
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    if (!positions.containsKey(next.getHash())) {
+                        writeRow(stream, next);
+                    }
+                }
+            }
+
+            if (stream.size() > 0) {
+                if (GRAPH_FILE.exists()) {
+                    appendContents(GRAPH_FILE, stream.toByteArray());
+                } else {
+                    writeContents(GRAPH_FILE, stream.toByteArray());
+                }
+                loadedLength += stream.size();
+                Fsync.later(GRAPH_FILE);
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Write the row of COMMIT, whose parents are recorded, to STREAM and record it.
+     */
+    private void writeRow(ByteArrayOutputStream stream, Commit commit) {
+        List<String> parentIds = commit.getParentIds();
+        int[] parentPositions = new int[parentIds.size()];
+        int generation = 1;
+        for (int i = 0; i < parentPositions.length; i++) {
+            parentPositions[i] = positions.get(parentIds.get(i));
+            generation = Math.max(generation, generations.get(parentPositions[i]) + 1);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(stream)) {
+            out.write(HashIndex.toBytes(commit.getHash()));
+            out.writeInt(generation);
+            out.writeLong(commit.getEpochSecond());
+            out.writeByte(parentPositions.length);
+            for (int position: parentPositions) {
+                out.writeInt(position);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        put(commit.getHash(), generation, commit.getEpochSecond(), parentPositions);
+    }
+
+    /**
+     * Return the position of the commit with the given hash, recording it and
+     * its missing ancestors first. Only commits made before the graph existed
+     * are missing, and those are read once and never again.
+     * @param hash
+     * @return
+     */
+    public int ensure(String hash) {
+        if (!positions.containsKey(hash)) {
+            add(Commit.getCommitFromHash(hash));
+        }
+        return positions.get(hash);
+    }
+
+    /**
+     * Return the hash of the best common ancestor of the two given commits.
+     * Commits are visited in decreasing generation, so every descendant of a commit
+     * is visited before it, and the first commit reached from both sides is a
+     * common ancestor which is not an ancestor of any other common ancestor.
+     * Commits older than that are never visited.
+     * @param head
+     * @param other
+     * @return
+     */
+    public String mergeBase(String head, String other) {
+        final int fromHead = 1;
+        final int fromOther = 2;
+        HashMap<Integer, Integer> flags = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>((p, q) -> {
+            int cmp = Integer.compare(generations.get(q), generations.get(p));
+            return cmp != 0 ? cmp : Long.compare(timestamps.get(q), timestamps.get(p));
+        });
+
+        int headPosition = ensure(head);
+        int otherPosition = ensure(other);
+        flags.merge(headPosition, fromHead, (a, b) -> a | b);
+        flags.merge(otherPosition, fromOther, (a, b) -> a | b);
+        queue.add(headPosition);
+        if (otherPosition != headPosition) {
+            queue.add(otherPosition);
+        }
+
+        while (!queue.isEmpty()) {
+            int position = queue.remove();
+            int flag = flags.get(position);
+            if (flag == (fromHead | fromOther)) {
+                return hashes.get(position);
+            }
+
+            for (int parent: parents.get(position)) {
+                Integer parentFlag = flags.get(parent);
+                if (parentFlag == null) {
+                    flags.put(parent, flag);
+                    queue.add(parent);
+                } else {
+                    flags.put(parent, parentFlag | flag);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Verify whether the commit ANCESTOR is an ancestor of the commit DESCENDANT,
+     * or the same commit. Commits whose generation is not greater than the generation
+     * of ANCESTOR are never walked past, and neither are commits with a bitmap.
+     * @param ancestor
+     * @param descendant
+     * @return
+     */
+    public boolean isAncestor(String ancestor, String descendant) {
+        int ancestorPosition = ensure(ancestor);
+        int descendantPosition = ensure(descendant);
+        return reachable(new int[] {descendantPosition}, generations.get(ancestorPosition))
+                .contains(ancestorPosition);
+    }
+
+    /**
+     * Return the positions of all the commits reachable from the commits with
+     * the given hashes, themselves included.
+     * @param hashes
+     * @return
+     */
+    public CompressedBitmap reachable(Collection<String> hashes) {
+        int[] starts = new int[hashes.size()];
+        int i = 0;
+        for (String hash: hashes) {
+            starts[i++] = ensure(hash);
+        }
+        return reachable(starts, 0);
+    }
+
+    /**
+     * Return the hash of the commit at the given position.
+     * @param position
+     * @return
+     */
+    public String hashAt(int position) {
+        return hashes.get(position);
+    }
+
+    /**
+     * Rewrite the bitmaps for the commits with the given hashes and for their
+     * first-parent ancestors at distances 64, 128, 256 and so on, so that any walk from
+     * a commit near a branch soon reaches a bitmap. Bitmaps are computed in the order
+     * the commits are recorded, parents first, so each reuses the bitmaps of its ancestors.
+     * @param tips
+     */
+    public void writeBitmaps(Collection<String> tips) {
+        TreeSet<Integer> selected = new TreeSet<>();
+        for (String tip: tips) {
+            int position = ensure(tip);
+            selected.add(position);
+            int distance = 0;
+            int next = BITMAP_SPACING;
+            while (parents.get(position).length > 0) {
+                position = parents.get(position)[0];
+                distance++;
+                if (distance == next) {
+                    selected.add(position);
+                    next *= 2;
+                }
+            }
+        }
+
+        bitmaps = new HashMap<>();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(stream)) {
+            for (int position: selected) {
+                CompressedBitmap bitmap = reachable(new int[] {position}, 0);
+                bitmaps.put(position, bitmap);
+                out.write(HashIndex.toBytes(hashes.get(position)));
+                out.writeInt(position);
+                bitmap.write(out);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        writeAtomically(BITMAP_FILE, stream.toByteArray());
+    }
+
+    /**
+     * Return the positions of the commits reachable from STARTS, themselves included,
+     * not walking past commits whose generation is less than MINGENERATION.
+     */
+    private CompressedBitmap reachable(int[] starts, int minGeneration) {
+        CompressedBitmap result = new CompressedBitmap();
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int start: starts) {
+            stack.push(start);
+        }
+
+        HashMap<Integer, CompressedBitmap> known = bitmaps();
+        while (!stack.isEmpty()) {
+            int position = stack.pop();
+            if (result.contains(position)) {
+                continue;
+            }
+            CompressedBitmap bitmap = known.get(position);
+            if (bitmap != null) {
+                result.or(bitmap);
+                continue;
+            }
+            result.add(position);
+            for (int parent: parents.get(position)) {
+                if (generations.get(parent) >= minGeneration && !result.contains(parent)) {
+                    stack.push(parent);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the reachability bitmaps, reading them first if needed. Bitmaps whose
+     * commit is no longer at the recorded position, as if the graph was rebuilt, are ignored.
+     */
+    private HashMap<Integer, CompressedBitmap> bitmaps() {
+        if (bitmaps != null) {
+            return bitmaps;
+        }
+
+        bitmaps = new HashMap<>();
+        if (BITMAP_FILE.exists()) {
+            ByteBuffer buffer = ByteBuffer.wrap(readContents(BITMAP_FILE));
+            byte[] hash = new byte[20];
+            while (buffer.hasRemaining()) {
+                buffer.get(hash);
+                int position = buffer.getInt();
+                CompressedBitmap bitmap = CompressedBitmap.read(buffer);
+                if (position < hashes.size()
+                        && hashes.get(position).equals(HashIndex.toHex(hash, 0))) {
+                    bitmaps.put(position, bitmap);
+                }
+            }
+        }
+        return bitmaps;
+    }
+
+    private void put(String hash, int generation, long timestamp, int[] parentPositions) {
+        positions.put(hash, hashes.size());
+        hashes.add(hash);
+        generations.add(generation);
+        timestamps.add(timestamp);
+        parents.add(parentPositions);
+    }
+}
@@ -0,0 +1,63 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static gitlet.Repository.OBJECT_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Represents the commit index, a sorted table of the hashes of all commits, so that
+ * an abbreviated commit id is resolved by a binary search instead of listing directories.
+ * The table maps each hash to the offset of its record in the commit log, and its
+ * trailer is the length of the log when the table was written. Commits recorded in the
+ * log after that are scanned from the log, and the table is rewritten once they are many.
+ * @author Jiahao Qin
+ */
+class CommitIndex {
+    /** The commit index file. */
+    static final File INDEX_FILE = join(OBJECT_DIR, "info", "commit-index");
+
+    /** The number of unindexed commits above which the table is rewritten. */
+    private static final int MAX_UNINDEXED = 256;
+
+    /**
+     * Return the hashes of all commits which start with the given hexadecimal prefix.
+     * @param prefix
+     * @return
+     */
+    static List<String> findByPrefix(String prefix) {
+        HashIndex index = HashIndex.open(INDEX_FILE);
+        List<String> results = new ArrayList<>();
+        long indexed = 0;
+        if (index != null) {
+            results.addAll(index.findByPrefix(prefix));
+            indexed = index.trailer();
+        }
+
+        int[] unindexed = {0};
+        CommitLog.forEachHash(indexed, (hash, offset) -> {
+            unindexed[0]++;
+            if (hash.startsWith(prefix)) {
+                results.add(hash);
+            }
+        });
+
+        if (unindexed[0] > MAX_UNINDEXED) {
+            rebuild();
+        }
+        return results;
+    }
+
+    /**
+     * Rewrite the table from the whole commit log.
+     */
+    static void rebuild() {
+        SortedMap<String, Long> entries = new TreeMap<>();
+        long length = CommitLog.forEachHash(0, entries::put);
+        HashIndex.write(INDEX_FILE, entries, length);
+    }
+}
@@ -0,0 +1,269 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+
+import static gitlet.Repository.OBJECT_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Represents the commit log, a side file which records the metadata of every
+ * commit, so that global-log and find can stream it instead of reading commit objects.
+ * The file is append-only, a record is appended whenever a commit is saved:
+ *   hash (20 raw bytes), the hash code of the message (int),
+ *   the number of parents (byte), the hash of each parent (20 raw bytes),
+ *   the timestamp (modified UTF-8), the length of the message in UTF-8 (int), the message.
+ * The message comes last and its hash code first, so find skips the message
+ * of every commit whose hash code does not match.
+ * The log is appended to and rewritten under the lock of the log file, so that
+ * records of commits saved by processes running at the same time are never lost.
+ * @author Jiahao Qin
+ */
+class CommitLog {
+    /** The commit log file. */
+    static final File LOG_FILE = join(OBJECT_DIR, "info", "commit-log");
+
+    /** The metadata of a commit, as recorded in the log. */
+    static class Entry {
+        final String hash;
+        final List<String> parentIds;
+        final String timestamp;
+        final String message;
+
+        Entry(String hash, List<String> parentIds, String timestamp, String message) {
+            this.hash = hash;
+            this.parentIds = parentIds;
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Append the record of a new commit, which must have been saved. If the log is
+     * missing, as in repositories created before it existed, it is instead built
+     * from all the existing commits, this one included.
+     * @param commit
+     */
+    static void append(Commit commit) {
+        LOG_FILE.getParentFile().mkdir();
+        LockFile lock = LockFile.acquire(LOG_FILE);
+        try {
+            if (!LOG_FILE.exists()) {
+                rebuild();
+            } else {
+                appendContents(LOG_FILE, record(commit));
+            }
+        } finally {
+            lock.release();
+        }
+        Fsync.later(LOG_FILE);
+    }
+
+    /**
+     * Call ACTION with every commit in the log, in the order they were recorded.
+     * @param action
+     */
+    static void forEach(Consumer<Entry> action) {
+        ensure();
+        try (DataInputStream in = open(0)) {
+            byte[] hash = new byte[20];
+            while (readHash(in, hash)) {
+                in.readInt();
+                List<String> parentIds = readParents(in);
+                String timestamp = in.readUTF();
+                byte[] message = new byte[in.readInt()];
+                in.readFully(message);
+                action.accept(new Entry(HashIndex.toHex(hash, 0), parentIds, timestamp,
+                        new String(message, StandardCharsets.UTF_8)));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Return the hashes of the commits with the given message, in the order they were recorded.
+     * @param message
+     * @return
+     */
+    static List<String> find(String message) {
+        ensure();
+        byte[] expected = message.getBytes(StandardCharsets.UTF_8);
+        int expectedCode = message.hashCode();
+        List<String> hashes = new ArrayList<>();
+        try (DataInputStream in = open(0)) {
+            byte[] hash = new byte[20];
+            while (readHash(in, hash)) {
+                int code = in.readInt();
+                in.skipBytes(in.readUnsignedByte() * 20);
+                in.skipBytes(in.readUnsignedShort());
+                int length = in.readInt();
+                if (code != expectedCode || length != expected.length) {
+                    in.skipBytes(length);
+                    continue;
+                }
+
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                if (Arrays.equals(bytes, expected)) {
+                    hashes.add(HashIndex.toHex(hash, 0));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return hashes;
+    }
+
+    /**
+     * Call ACTION with the hash and the offset of every record starting at or after
+     * the given offset, in the order they were recorded. Returns the length of the log.
+     * @param start the offset of a record, or the length of the log
+     * @param action
+     * @return
+     */
+    static long forEachHash(long start, ObjLongConsumer<String> action) {
+        ensure();
+        long offset = start;
+        try (DataInputStream in = open(start)) {
+            byte[] hash = new byte[20];
+            while (readHash(in, hash)) {
+                in.readInt();
+                int parents = in.readUnsignedByte();
+                in.skipBytes(parents * 20);
+                int timestamp = in.readUnsignedShort();
+                in.skipBytes(timestamp);
+                int message = in.readInt();
+                in.skipBytes(message);
+                action.accept(HashIndex.toHex(hash, 0), offset);
+                offset += 20 + 4 + 1 + parents * 20 + 2 + timestamp + 4 + message;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return offset;
+    }
+
+    /**
+     * Rewrite the log with only the records of the commits which KEEP accepts,
+     * as gc does once it has removed commits.
+     * @param keep
+     */
+    static void retain(Predicate<String> keep) {
+        ensure();
+        LockFile lock = LockFile.acquire(LOG_FILE);
+        byte[] log = readContents(LOG_FILE);
+        List<long[]> kept = new ArrayList<>();
+        long end = forEachHash(0, (hash, offset) -> {
+            if (!kept.isEmpty() && kept.get(kept.size() - 1)[1] < 0) {
+                kept.get(kept.size() - 1)[1] = offset;
+            }
+            if (keep.test(hash)) {
+                kept.add(new long[] {offset, -1});
+            }
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream(log.length);
+        for (long[] record: kept) {
+            long recordEnd = record[1] < 0 ? end : record[1];
+            out.write(log, (int) record[0], (int) (recordEnd - record[0]));
+        }
+        lock.write(out.toByteArray());
+        lock.commit();
+    }
+
+    /**
+     * Build the log if it is missing, so that commits saved from now on are appended to it.
+     */
+    static void ensure() {
+        if (LOG_FILE.exists()) {
+            return;
+        }
+        LOG_FILE.getParentFile().mkdir();
+        LockFile lock = LockFile.acquire(LOG_FILE);
+        try {
+            if (!LOG_FILE.exists()) {
+                rebuild();
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Write the log from all the existing commits. Only repositories created before
+     * the log existed are missing it, and those are read once and never again.
+     */
+    private static void rebuild() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String hash: Commit.getAllCommitHashes()) {
+            byte[] record = record(Commit.getCommitFromHash(hash));
+            out.write(record, 0, record.length);
+        }
+        LOG_FILE.getParentFile().mkdir();
+        writeContents(LOG_FILE, out.toByteArray());
+    }
+
+    private static byte[] record(Commit commit) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(stream)) {
+            byte[] message = commit.getMessage().getBytes(StandardCharsets.UTF_8);
+            out.write(HashIndex.toBytes(commit.getHash()));
+            out.writeInt(commit.getMessage().hashCode());
+            out.writeByte(commit.getParentIds().size());
+            for (String parentId: commit.getParentIds()) {
+                out.write(HashIndex.toBytes(parentId));
+            }
+            out.writeUTF(commit.getTimestamp());
+            out.writeInt(message.length);
+            out.write(message);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return stream.toByteArray();
+    }
+
+    private static DataInputStream open(long offset) throws IOException {
+        FileChannel channel = FileChannel.open(LOG_FILE.toPath()).position(offset);
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+    }
+
+    /**
+     * Read the hash of the next record into HASH, returns false at the end of the log.
+     * @param in
+     * @param hash
+     * @return
+     */
+    private static boolean readHash(DataInputStream in, byte[] hash) throws IOException {
+        try {
+            in.readFully(hash);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static List<String> readParents(DataInputStream in) throws IOException {
+        int count = in.readUnsignedByte();
+        List<String> parentIds = new ArrayList<>(count);
+        byte[] hash = new byte[20];
+        for (int i = 0; i < count; i++) {
+            in.readFully(hash);
+            parentIds.add(HashIndex.toHex(hash, 0));
+        }
+        return parentIds;
+    }
+}
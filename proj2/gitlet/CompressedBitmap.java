@@ -0,0 +1,274 @@
+package gitlet;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non-negative ints, laid out like a Roaring bitmap.
+ * Values are grouped by their high 16 bits, and each group is stored in a container
+ * holding their low 16 bits: a sorted array while the group has at most 4096 values,
+ * and a bitmap of 65536 bits otherwise, whichever is smaller.
+ * Sets of ancestors are dense, so most of their groups end up as bitmaps,
+ * while sparse sets stay small.
+ * @author Jiahao Qin
+ */
+class CompressedBitmap {
+    /** The largest number of values of an array container. */
+    private static final int ARRAY_MAX = 4096;
+    /** The number of longs of a bitmap container. */
+    private static final int BITMAP_WORDS = 65536 / 64;
+
+    /** The high 16 bits of the values of each container, sorted. */
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size;
+
+    /**
+     * Add VALUE to the set.
+     * @param value
+     */
+    void add(int value) {
+        char key = (char) (value >>> 16);
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i < 0) {
+            i = -i - 1;
+            insert(i, key, new Container());
+        }
+        containers[i].add((char) value);
+    }
+
+    /**
+     * Verify whether VALUE is in the set.
+     * @param value
+     * @return
+     */
+    boolean contains(int value) {
+        int i = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    /**
+     * Add all the values of OTHER to the set.
+     * @param other
+     */
+    void or(CompressedBitmap other) {
+        for (int j = 0; j < other.size; j++) {
+            int i = Arrays.binarySearch(keys, 0, size, other.keys[j]);
+            if (i < 0) {
+                insert(-i - 1, other.keys[j], other.containers[j].copy());
+            } else {
+                containers[i].or(other.containers[j]);
+            }
+        }
+    }
+
+    /**
+     * Return the number of values in the set.
+     * @return
+     */
+    int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality;
+        }
+        return cardinality;
+    }
+
+    /**
+     * Call ACTION with every value of the set, in increasing order.
+     * @param action
+     */
+    void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    /**
+     * Write the set to OUT: the number of containers (int), then for each container
+     * its key (char), its kind (byte, 0 for an array and 1 for a bitmap) and its values,
+     * the number of values (int) and the values (char each) of an array, or the words
+     * (long each) of a bitmap.
+     * @param out
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            Container container = containers[i];
+            out.writeChar(keys[i]);
+            if (container.bits == null) {
+                out.writeByte(0);
+                out.writeInt(container.cardinality);
+                for (int j = 0; j < container.cardinality; j++) {
+                    out.writeChar(container.values[j]);
+                }
+            } else {
+                out.writeByte(1);
+                for (long word: container.bits) {
+                    out.writeLong(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a set written by write from BUFFER.
+     * @param buffer
+     * @return
+     */
+    static CompressedBitmap read(ByteBuffer buffer) {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for (int i = buffer.getInt(); i > 0; i--) {
+            char key = buffer.getChar();
+            Container container = new Container();
+            if (buffer.get() == 0) {
+                int cardinality = buffer.getInt();
+                container.values = new char[Math.max(cardinality, 4)];
+                for (int j = 0; j < cardinality; j++) {
+                    container.values[j] = buffer.getChar();
+                }
+                container.cardinality = cardinality;
+            } else {
+                container.values = null;
+                container.bits = new long[BITMAP_WORDS];
+                for (int j = 0; j < BITMAP_WORDS; j++) {
+                    container.bits[j] = buffer.getLong();
+                    container.cardinality += Long.bitCount(container.bits[j]);
+                }
+            }
+            bitmap.insert(bitmap.size, key, container);
+        }
+        return bitmap;
+    }
+
+    private void insert(int i, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        size++;
+    }
+
+    /**
+     * Holds the low 16 bits of the values of one group, either in the sorted array
+     * values or in bits, the other being null.
+     */
+    private static class Container {
+        private char[] values = new char[4];
+        private long[] bits;
+        private int cardinality;
+
+        void add(char low) {
+            if (bits != null) {
+                long word = bits[low >>> 6];
+                bits[low >>> 6] = word | (1L << low);
+                if (word != bits[low >>> 6]) {
+                    cardinality++;
+                }
+                return;
+            }
+
+            int i = Arrays.binarySearch(values, 0, cardinality, low);
+            if (i >= 0) {
+                return;
+            }
+            if (cardinality == ARRAY_MAX) {
+                toBitmap();
+                add(low);
+                return;
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(cardinality * 2, ARRAY_MAX));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = low;
+            cardinality++;
+        }
+
+        boolean contains(char low) {
+            if (bits != null) {
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+        }
+
+        void or(Container other) {
+            if (bits == null && other.bits == null
+                    && cardinality + other.cardinality <= ARRAY_MAX) {
+                char[] merged = new char[Math.max(cardinality + other.cardinality, 4)];
+                int i = 0;
+                int j = 0;
+                int n = 0;
+                while (i < cardinality || j < other.cardinality) {
+                    if (j == other.cardinality
+                            || (i < cardinality && values[i] < other.values[j])) {
+                        merged[n++] = values[i++];
+                    } else if (i == cardinality || other.values[j] < values[i]) {
+                        merged[n++] = other.values[j++];
+                    } else {
+                        merged[n++] = values[i++];
+                        j++;
+                    }
+                }
+                values = merged;
+                cardinality = n;
+                return;
+            }
+
+            if (bits == null) {
+                toBitmap();
+            }
+            if (other.bits == null) {
+                for (int j = 0; j < other.cardinality; j++) {
+                    add(other.values[j]);
+                }
+                return;
+            }
+            cardinality = 0;
+            for (int j = 0; j < BITMAP_WORDS; j++) {
+                bits[j] |= other.bits[j];
+                cardinality += Long.bitCount(bits[j]);
+            }
+        }
+
+        void forEach(int high, IntConsumer action) {
+            if (bits == null) {
+                for (int i = 0; i < cardinality; i++) {
+                    action.accept(high | values[i]);
+                }
+                return;
+            }
+            for (int j = 0; j < BITMAP_WORDS; j++) {
+                long word = bits[j];
+                while (word != 0) {
+                    action.accept(high | (j << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        Container copy() {
+            Container copy = new Container();
+            copy.values = values == null ? null : values.clone();
+            copy.bits = bits == null ? null : bits.clone();
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        private void toBitmap() {
+            bits = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                bits[values[i] >>> 6] |= 1L << values[i];
+            }
+            values = null;
+        }
+    }
+}
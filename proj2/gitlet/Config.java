@@ -0,0 +1,102 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Represents the configuration of the repository,
+ * which is stored in .gitlet/config as key=value lines.
+ * @author Jiahao Qin
+ */
+class Config {
+    /** The config file. */
+    static final File CONFIG_FILE = join(GITLET_DIR, "config");
+
+    private static Properties properties;
+
+    private static synchronized Properties getProperties() {
+        if (properties == null) {
+            properties = new Properties();
+            if (CONFIG_FILE.exists()) {
+                try (InputStream in = Files.newInputStream(CONFIG_FILE.toPath())) {
+                    properties.load(in);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e.getMessage());
+                }
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Forget the loaded configuration, so that it is read again.
+     */
+    static synchronized void reset() {
+        properties = null;
+    }
+
+    /**
+     * Return the value of the given key, or DEFAULTVALUE if it is not set.
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    static String get(String key, String defaultValue) {
+        return getProperties().getProperty(key, defaultValue);
+    }
+
+    /**
+     * Return the value of the given key as an int, or DEFAULTVALUE if it is not set.
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw error("Bad config value for %s: %s", key, value);
+        }
+    }
+
+    /**
+     * Set the value of the given key and save the config file.
+     * @param key
+     * @param value
+     */
+    static void set(String key, String value) {
+        Properties props = getProperties();
+        props.setProperty(key, value);
+        save(props);
+    }
+
+    /**
+     * Remove the given key and save the config file.
+     * @param key
+     */
+    static void unset(String key) {
+        Properties props = getProperties();
+        props.remove(key);
+        save(props);
+    }
+
+    private static void save(Properties props) {
+        try (OutputStream out = Files.newOutputStream(CONFIG_FILE.toPath())) {
+            props.store(out, null);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Runs gitlet commands in a long-lived process, which keeps the decoded index,
+ * the pack, the commit graph, the configuration and the commit cache in memory
+ * across commands, and saves starting a JVM for each command. See Client.
+ * The daemon listens on the Unix domain socket .gitlet/daemon.sock and runs one
+ * command at a time. A request is the number of arguments (int) and each argument
+ * (modified UTF-8). The response is a sequence of frames: a stream (byte, 1 for
+ * standard output and 2 for standard error), the length (int) and the bytes, ended
+ * by the stream 0 and the exit code (int).
+ * Other gitlet processes may still run at the same time: before each command, the
+ * state read from a file which another process has replaced since is read again,
+ * and HEAD and the current commit are always read again. A command which ends early
+ * or fails may leave changes in memory, so all the state is read again after it.
+ * With core.watch set to true, the daemon also runs a Watcher for status.
+ * @author Jiahao Qin
+ */
+class Daemon {
+    /** The socket of the daemon. */
+    static final File SOCKET_FILE = join(GITLET_DIR, "daemon.sock");
+
+    private static final byte EXIT = 0;
+    private static final byte STDOUT = 1;
+    private static final byte STDERR = 2;
+
+    /** Whether this process is a daemon, so that commands must not exit it. */
+    private static volatile boolean serving;
+
+    /**
+     * Thrown instead of exiting when a command ends early in the daemon.
+     */
+    static class CommandExit extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CommandExit() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Verify whether this process is a daemon.
+     * @return
+     */
+    static boolean isServing() {
+        return serving;
+    }
+
+    /** The files read into memory, with the state to forget when they are replaced. */
+    private final Map<File, Runnable> tracked = new LinkedHashMap<>();
+    /** The versions of the tracked files after the last command, see Stage.versionOf. */
+    private final Map<File, String> versions = new LinkedHashMap<>();
+
+    private Daemon() {
+        tracked.put(join(GITLET_DIR, "index"), Stage::reset);
+        tracked.put(Pack.INDEX_FILE, () -> {
+            Pack.reset();
+            Commit.reset(true);
+        });
+        tracked.put(CommitGraph.GRAPH_FILE, CommitGraph::reset);
+        tracked.put(CommitGraph.BITMAP_FILE, CommitGraph::reset);
+        tracked.put(Commit.SHALLOW_FILE, Commit::resetShallow);
+        tracked.put(Config.CONFIG_FILE, () -> {
+            Config.reset();
+            Fsync.reset();
+            Parallel.reset();
+        });
+    }
+
+    /**
+     * Serve commands until a client sends "daemon stop".
+     */
+    static void serve() {
+        if (isRunning()) {
+            exitWithError("A daemon is already running.");
+        }
+        SOCKET_FILE.delete();
+
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(SOCKET_FILE.toPath());
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(address);
+            Runtime.getRuntime().addShutdownHook(new Thread(SOCKET_FILE::delete));
+            serving = true;
+            Watcher.startIfEnabled();
+            System.out.println("Serving " + Repository.CWD + " on " + SOCKET_FILE + ".");
+
+            Daemon daemon = new Daemon();
+            boolean stopped = false;
+            while (!stopped) {
+                try (SocketChannel channel = server.accept()) {
+                    stopped = daemon.handle(channel);
+                } catch (IOException e) {
+                    // the client went away, which only affects its own command
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            Watcher.stop();
+            serving = false;
+            SOCKET_FILE.delete();
+        }
+    }
+
+    /**
+     * Verify whether a daemon is listening on the socket.
+     * A socket left by a daemon which was killed refuses connections.
+     * @return
+     */
+    static boolean isRunning() {
+        if (!SOCKET_FILE.exists()) {
+            return false;
+        }
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Run the command requested on CHANNEL and send its output back.
+     * Returns whether the command stops the daemon.
+     */
+    private boolean handle(SocketChannel channel) throws IOException {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+        PrintStream stdout = new PrintStream(new BufferedOutputStream(
+                new FrameOutputStream(out, STDOUT)), false, StandardCharsets.UTF_8);
+        PrintStream stderr = new PrintStream(new BufferedOutputStream(
+                new FrameOutputStream(out, STDERR)), false, StandardCharsets.UTF_8);
+        boolean stop = Arrays.equals(args, new String[] {"daemon", "stop"});
+        int code = stop ? stop(stdout) : run(args, stdout, stderr);
+
+        stdout.flush();
+        stderr.flush();
+        out.writeByte(EXIT);
+        out.writeInt(code);
+        out.flush();
+        return stop;
+    }
+
+    private int stop(PrintStream stdout) {
+        stdout.println("Daemon stopped.");
+        return 0;
+    }
+
+    /**
+     * Run the command ARGS as Main would, with its output sent to STDOUT and STDERR.
+     * Returns its exit code.
+     */
+    private int run(String[] args, PrintStream stdout, PrintStream stderr) {
+        refresh();
+        PrintStream systemOut = System.out;
+        PrintStream systemErr = System.err;
+        System.setOut(stdout);
+        System.setErr(stderr);
+        int code = 0;
+        boolean completed = false;
+        try {
+            Main.main(args);
+            completed = true;
+        } catch (CommandExit e) {
+            // the command printed its message and ended, as exitWithError does
+        } catch (RuntimeException | Error e) {
+            e.printStackTrace();
+            code = 1;
+        } finally {
+            System.setOut(systemOut);
+            System.setErr(systemErr);
+        }
+
+        if (!completed) {
+            // the command may have changed state in memory without saving it
+            forgetAll();
+        }
+        for (File file: tracked.keySet()) {
+            versions.put(file, Stage.versionOf(file));
+        }
+        return code;
+    }
+
+    /**
+     * Forget HEAD and the current commit, and the state read from every file which
+     * another process has replaced since the last command.
+     */
+    private void refresh() {
+        Head.reset();
+        Commit.reset(false);
+        for (Map.Entry<File, Runnable> entry: tracked.entrySet()) {
+            File file = entry.getKey();
+            if (versions.containsKey(file)
+                    && !Objects.equals(versions.get(file), Stage.versionOf(file))) {
+                entry.getValue().run();
+            }
+        }
+    }
+
+    private void forgetAll() {
+        Head.reset();
+        Commit.reset(false);
+        for (Runnable reset: tracked.values()) {
+            reset.run();
+        }
+    }
+
+    /**
+     * Writes everything written to it as frames of one stream.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte stream;
+
+        FrameOutputStream(DataOutputStream out, byte stream) {
+            this.out = out;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            out.writeByte(stream);
+            out.writeInt(length);
+            out.write(bytes, offset, length);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+
+/**
+ * Encodes a file as a sequence of copy and insert instructions against a base version.
+ * The encoding is:
+ *   the length of the target (varint),
+ *   then instructions, each is either
+ *     COPY (0), offset in base (varint), length (varint), or
+ *     INSERT (1), length (varint), the literal bytes.
+ * @author Jiahao Qin
+ */
+class Delta {
+    /** The size of the blocks of base which are indexed for matching. */
+    private static final int BLOCK = 16;
+    /** The multiplier of the rolling hash. */
+    private static final int PRIME = 31;
+    /** PRIME to the power of BLOCK - 1, used to roll the leading byte out. */
+    private static final int LEADING;
+
+    private static final byte COPY = 0;
+    private static final byte INSERT = 1;
+
+    static {
+        int power = 1;
+        for (int i = 1; i < BLOCK; i++) {
+            power *= PRIME;
+        }
+        LEADING = power;
+    }
+
+    /**
+     * Return the instructions which turn BASE into TARGET.
+     * @param base
+     * @param target
+     * @return
+     */
+    static byte[] create(byte[] base, byte[] target) {
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, target.length);
+
+        int insertStart = 0;
+        int p = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (p + BLOCK <= target.length) {
+            Integer offset = blocks.get(h);
+            if (offset != null && matches(base, offset, target, p)) {
+                int length = BLOCK;
+                while (offset + length < base.length && p + length < target.length
+                        && base[offset + length] == target[p + length]) {
+                    length++;
+                }
+
+                writeInsert(out, target, insertStart, p);
+                out.write(COPY);
+                writeVarint(out, offset);
+                writeVarint(out, length);
+
+                p += length;
+                insertStart = p;
+                if (p + BLOCK <= target.length) {
+                    h = hash(target, p);
+                }
+            } else {
+                if (p + BLOCK < target.length) {
+                    h = (h - target[p] * LEADING) * PRIME + target[p + BLOCK];
+                }
+                p++;
+            }
+        }
+
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Return the target rebuilt by applying DELTA to BASE.
+     * @param base
+     * @param delta
+     * @return
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] position = {0};
+        byte[] target = new byte[readVarint(delta, position)];
+        int t = 0;
+        while (position[0] < delta.length) {
+            byte op = delta[position[0]++];
+            if (op == COPY) {
+                int offset = readVarint(delta, position);
+                int length = readVarint(delta, position);
+                System.arraycopy(base, offset, target, t, length);
+                t += length;
+            } else {
+                int length = readVarint(delta, position);
+                System.arraycopy(delta, position[0], target, t, length);
+                position[0] += length;
+                t += length;
+            }
+        }
+        return target;
+    }
+
+    private static int hash(byte[] bytes, int start) {
+        int h = 0;
+        for (int i = start; i < start + BLOCK; i++) {
+            h = h * PRIME + bytes[i];
+        }
+        return h;
+    }
+
+    private static boolean matches(byte[] base, int offset, byte[] target, int p) {
+        for (int i = 0; i < BLOCK; i++) {
+            if (base[offset + i] != target[p + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (from < to) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] bytes, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position[0]++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
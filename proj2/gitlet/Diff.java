@@ -0,0 +1,223 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Computes the differences between two sequences of lines with Myers' algorithm,
+ * in its linear space variant: the middle snake of the edit graph is found by
+ * searching forward and backward at once, and the two halves are solved recursively,
+ * so memory is proportional to the number of lines rather than to its square.
+ * Lines are compared as ints; see Lines, which numbers equal lines equally.
+ * @author Jiahao Qin
+ */
+class Diff {
+    /**
+     * Represents a change: lines [aStart, aEnd) of the first sequence are
+     * replaced by lines [bStart, bEnd) of the second.
+     */
+    static class Hunk {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Hunk(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /**
+     * Represents lines read from streams. Equal lines of all the sequences
+     * read through the same Lines get equal numbers, so they can be diffed as ints.
+     */
+    static class Lines {
+        private final HashMap<ByteBuffer, Integer> numbers = new HashMap<>();
+
+        /**
+         * Read all the lines of IN, each with its line terminator.
+         * The last line has none if IN does not end with one.
+         * @param in
+         * @return
+         */
+        List<byte[]> read(InputStream in) throws IOException {
+            List<byte[]> lines = new ArrayList<>();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') {
+                        line.write(buffer, start, i + 1 - start);
+                        lines.add(line.toByteArray());
+                        line.reset();
+                        start = i + 1;
+                    }
+                }
+                line.write(buffer, start, n - start);
+            }
+            if (line.size() > 0) {
+                lines.add(line.toByteArray());
+            }
+            return lines;
+        }
+
+        /**
+         * Return the numbers of LINES.
+         * @param lines
+         * @return
+         */
+        int[] number(List<byte[]> lines) {
+            int[] result = new int[lines.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = numbers.computeIfAbsent(ByteBuffer.wrap(lines.get(i)), k -> numbers.size());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Return the changes which turn A into B, in order.
+     * @param a
+     * @param b
+     * @return
+     */
+    static List<Hunk> diff(int[] a, int[] b) {
+        Diff d = new Diff(a, b);
+        d.compare(0, a.length, 0, b.length);
+
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if ((i < a.length && d.aChanged[i]) || (j < b.length && d.bChanged[j])) {
+                int aStart = i;
+                int bStart = j;
+                while (i < a.length && d.aChanged[i]) {
+                    i++;
+                }
+                while (j < b.length && d.bChanged[j]) {
+                    j++;
+                }
+                hunks.add(new Hunk(aStart, i, bStart, j));
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return hunks;
+    }
+
+    private final int[] a;
+    private final int[] b;
+    /** Whether each line of a is deleted. */
+    private final boolean[] aChanged;
+    /** Whether each line of b is inserted. */
+    private final boolean[] bChanged;
+    /** The furthest x reached on each diagonal, searching forward and backward. */
+    private final int[] forward;
+    private final int[] backward;
+
+    private Diff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        aChanged = new boolean[a.length];
+        bChanged = new boolean[b.length];
+        int size = 2 * (a.length + b.length) + 3;
+        forward = new int[size];
+        backward = new int[size];
+    }
+
+    /**
+     * Mark the changes between a[aLo, aHi) and b[bLo, bHi).
+     */
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+
+        if (aLo == aHi) {
+            for (int j = bLo; j < bHi; j++) {
+                bChanged[j] = true;
+            }
+        } else if (bLo == bHi) {
+            for (int i = aLo; i < aHi; i++) {
+                aChanged[i] = true;
+            }
+        } else {
+            // both ranges are non-empty and differ at both ends, so at least two
+            // edits are needed, and each half of the path has at least one
+            int[] snake = middleSnake(aLo, aHi, bLo, bHi);
+            compare(aLo, snake[0], bLo, snake[1]);
+            compare(snake[2], aHi, snake[3], bHi);
+        }
+    }
+
+    /**
+     * Return the start and end {x, y, u, v} of the middle snake of the shortest
+     * edit path from (aLo, bLo) to (aHi, bHi).
+     */
+    private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int offset = n + m + 1;
+        int max = (n + m + 1) / 2;
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])
+                        ? forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int x0 = x;
+                int y0 = y;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+
+                int kr = delta - k;
+                if (odd && kr >= -(d - 1) && kr <= d - 1 && x + backward[offset + kr] >= n) {
+                    return new int[] {aLo + x0, bLo + y0, aLo + x, bLo + y};
+                }
+            }
+
+            for (int kr = -d; kr <= d; kr += 2) {
+                int xr = kr == -d || (kr != d && backward[offset + kr - 1] < backward[offset + kr + 1])
+                        ? backward[offset + kr + 1] : backward[offset + kr - 1] + 1;
+                int yr = xr - kr;
+                int xr0 = xr;
+                int yr0 = yr;
+                while (xr < n && yr < m && a[aHi - 1 - xr] == b[bHi - 1 - yr]) {
+                    xr++;
+                    yr++;
+                }
+                backward[offset + kr] = xr;
+
+                int k = delta - kr;
+                if (!odd && k >= -d && k <= d && xr + forward[offset + k] >= n) {
+                    return new int[] {aHi - xr, bHi - yr, aHi - xr0, bHi - yr0};
+                }
+            }
+        }
+        throw new IllegalStateException("no middle snake");
+    }
+}
@@ -0,0 +1,90 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Flushes written files to disk in batches. Objects written by a command are only
+ * remembered, and are all flushed, with their directories, right before the ref or
+ * index pointing to them is replaced, so that a crash never leaves a ref pointing to
+ * a missing object while each object costs no separate flush of its own.
+ * Flushing is disabled by setting core.fsync to false.
+ * @author Jiahao Qin
+ */
+class Fsync {
+    /** The files written since the last flush. */
+    private static final Set<Path> PENDING = new LinkedHashSet<>();
+
+    private static Boolean enabled;
+
+    private static synchronized boolean isEnabled() {
+        if (enabled == null) {
+            enabled = Boolean.parseBoolean(Config.get("core.fsync", "true"));
+        }
+        return enabled;
+    }
+
+    /**
+     * Forget whether flushing is enabled, so that core.fsync is read again.
+     */
+    static synchronized void reset() {
+        enabled = null;
+    }
+
+    /**
+     * Remember that FILE has been written, to flush it with the next batch.
+     * @param file
+     */
+    static synchronized void later(File file) {
+        if (isEnabled()) {
+            PENDING.add(file.toPath());
+        }
+    }
+
+    /**
+     * Flush FILE and every file written since the last flush, then their directories.
+     * @param file the file to flush with the batch, or null
+     */
+    static synchronized void flush(File file) {
+        if (file != null) {
+            later(file);
+        }
+        if (PENDING.isEmpty()) {
+            return;
+        }
+
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Path path: PENDING) {
+            force(path);
+            dirs.add(path.getParent());
+        }
+        for (Path dir: dirs) {
+            force(dir);
+        }
+        PENDING.clear();
+    }
+
+    /**
+     * Flush DIR, so that a file renamed into it survives a crash.
+     * @param dir
+     */
+    static void flushDirectory(File dir) {
+        if (isEnabled()) {
+            force(dir.toPath());
+        }
+    }
+
+    private static void force(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened on some platforms, and a file
+            // renamed since it was written is flushed through its new name
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Repository.OBJECT_DIR;
+import static gitlet.Repository.REF_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Removes the objects which can no longer be reached.
+ * Objects are marked starting from every branch and from the staged files: a commit
+ * marks its ancestors and its tree, a tree its subtrees and blobs, and a blob the base
+ * of its delta or its chunks. Marks are kept in a bitmap over the sorted hashes of all
+ * the stored objects, loose or packed, so every object is read at most once.
+ * Unreachable objects are only removed once they are older than gc.gracePeriod seconds,
+ * two weeks by default, so that objects written by a command running at the same time,
+ * which nothing points to yet, are never removed. A command which reuses a stored object
+ * freshens it instead of writing it, see Pack.freshen, for the same reason.
+ * Only one gc runs at a time, holding the lock of LOCK_FILE.
+ * @author Jiahao Qin
+ */
+class GarbageCollector {
+    /** The file whose lock is held by gc. */
+    static final File LOCK_FILE = join(OBJECT_DIR, "gc");
+
+    /** The default grace period, in seconds. */
+    private static final int GRACE_PERIOD = 14 * 24 * 60 * 60;
+    /** The object directories with fan-out subdirectories. */
+    private static final String[] FAN_OUT_DIRS = {"commits", "trees", "blobs", "chunks"};
+
+    /** The hashes of all the stored objects, sorted. */
+    private final String[] hashes;
+    /** The loose objects, with their hashes. */
+    private final List<File> looseFiles = new ArrayList<>();
+    private final List<String> looseHashes = new ArrayList<>();
+    /** The commits the branches point to. */
+    private final List<String> tips = new ArrayList<>();
+    /** The positions in hashes of the reachable objects. */
+    private final BitSet reachable;
+    /** The positions in hashes of the removed objects. */
+    private final BitSet removed;
+    private long reclaimedBytes;
+
+    GarbageCollector() {
+        TreeSet<String> all = new TreeSet<>(Pack.hashes());
+        for (String dir: FAN_OUT_DIRS) {
+            File[] prefixDirs = join(OBJECT_DIR, dir).listFiles(File::isDirectory);
+            if (prefixDirs == null) {
+                continue;
+            }
+            for (File prefixDir: prefixDirs) {
+                for (String hashFragment: plainFilenamesIn(prefixDir)) {
+                    addLoose(prefixDir.getName() + hashFragment, join(prefixDir, hashFragment));
+                }
+            }
+        }
+        File blobs = join(OBJECT_DIR, "blobs");
+        for (String hash: plainFilenamesIn(blobs)) {
+            addLoose(hash, join(blobs, hash));
+        }
+
+        for (String hash: looseHashes) {
+            if (hash != null) {
+                all.add(hash);
+            }
+        }
+        hashes = all.toArray(new String[0]);
+        reachable = new BitSet(hashes.length);
+        removed = new BitSet(hashes.length);
+    }
+
+    /**
+     * Remember a loose object. Files which are not objects, like the temporary files
+     * of an interrupted write, are remembered without a hash, to be removed once expired.
+     */
+    private void addLoose(String hash, File object) {
+        looseFiles.add(object);
+        looseHashes.add(hash.length() == UID_LENGTH ? hash : null);
+    }
+
+    /**
+     * Mark every object reachable from the branches and the staged files.
+     * The commits reachable from the branches are found with the reachability
+     * bitmaps of the commit graph, so only commits made since the last gc are walked.
+     */
+    void mark() {
+        for (String name: Head.branchNames()) {
+            String hash = readContentsAsString(join(REF_DIR, name));
+            if (Commit.exists(hash)) {
+                tips.add(hash);
+            }
+        }
+        for (Blob blob: Stage.getInstance().getStaged().values()) {
+            markBlob(blob.getHash());
+        }
+
+        CommitGraph graph = CommitGraph.getInstance();
+        graph.reachable(tips).forEach(position -> {
+            String hash = graph.hashAt(position);
+            if (!mark(hash)) {
+                return;
+            }
+            Commit commit = Commit.getCommitFromHash(hash);
+            if (commit.getTree() != null) {
+                markTree(commit.getTree());
+            } else {
+                for (Blob blob: commit.getBlobs().values()) {
+                    markBlob(blob.getHash());
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove the unreachable objects older than the grace period, then pack
+     * the reachable loose objects.
+     */
+    void sweep() {
+        long expiry = System.currentTimeMillis()
+                - 1000L * Config.getInt("gc.gracePeriod", GRACE_PERIOD);
+        for (int i = 0; i < looseFiles.size(); i++) {
+            File object = looseFiles.get(i);
+            String hash = looseHashes.get(i);
+            if ((hash != null && isReachable(hash)) || object.lastModified() >= expiry) {
+                continue;
+            }
+            long length = object.length();
+            if (object.delete()) {
+                reclaimedBytes += length;
+                if (hash != null) {
+                    removed.set(position(hash));
+                }
+            }
+        }
+
+        Pack.repack(this::isReachable, expiry, (hash, length) -> {
+            reclaimedBytes += length;
+            removed.set(position(hash));
+        });
+    }
+
+    /**
+     * Return the hashes of the commits the branches point to.
+     * @return
+     */
+    List<String> branchTips() {
+        return tips;
+    }
+
+    /**
+     * Return the number of objects removed by sweep.
+     * @return
+     */
+    int removedObjects() {
+        return removed.cardinality();
+    }
+
+    /**
+     * Return the number of bytes freed by removing objects.
+     * @return
+     */
+    long reclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    private boolean isReachable(String hash) {
+        int position = position(hash);
+        return position >= 0 && reachable.get(position);
+    }
+
+    private int position(String hash) {
+        return Arrays.binarySearch(hashes, hash);
+    }
+
+    /**
+     * Mark the object with the given hash. Returns false if it was marked already
+     * or is missing, so its references need not be followed.
+     */
+    private boolean mark(String hash) {
+        int position = position(hash);
+        if (position < 0 || reachable.get(position)) {
+            return false;
+        }
+        reachable.set(position);
+        return true;
+    }
+
+    private void markTree(String hash) {
+        if (!mark(hash)) {
+            return;
+        }
+        Tree tree = Tree.getTreeFromHash(hash);
+        for (String blob: tree.blobHashes()) {
+            markBlob(blob);
+        }
+        for (String subtree: tree.treeHashes()) {
+            markTree(subtree);
+        }
+    }
+
+    private void markBlob(String hash) {
+        if (mark(hash)) {
+            Blob.forEachReference(hash, this::markBlob, this::mark);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Represents a persistent table which maps sorted SHA-1 hashes to long values.
+ * The layout on disk is:
+ *   magic (4 bytes), version (4 bytes),
+ *   fan-out table (256 ints, the number of hashes whose first byte is less than or equal to i),
+ *   hashes (20 raw bytes each, sorted),
+ *   values (8 bytes each, in the same order as hashes),
+ *   and optionally a trailer (8 bytes) with a value describing the whole table.
+ * The file is memory-mapped, so a lookup only touches the pages it needs.
+ * @author Jiahao Qin
+ */
+class HashIndex {
+    private static final int MAGIC = 0x67494458;
+    private static final int VERSION = 1;
+    private static final int HASH_BYTES = 20;
+    private static final int HEADER_BYTES = 8 + 256 * 4;
+
+    /**
+     * Write a sorted map of hashes to FILE. The table is written to a temporary
+     * file first and then renamed, so readers never see a partial table.
+     * @param file
+     * @param entries
+     */
+    static void write(File file, SortedMap<String, Long> entries) {
+        write(file, entries, null);
+    }
+
+    /**
+     * Write a sorted map of hashes to FILE, followed by TRAILER unless it is null.
+     * @param file
+     * @param entries
+     * @param trailer
+     */
+    static void write(File file, SortedMap<String, Long> entries, Long trailer) {
+        int[] fanout = new int[256];
+        for (String hash: entries.keySet()) {
+            fanout[Integer.parseInt(hash.substring(0, 2), 16)]++;
+        }
+        for (int i = 1; i < 256; i++) {
+            fanout[i] += fanout[i - 1];
+        }
+
+        // each writer has its own temporary file, as in Utils.writeAtomically
+        Path temp;
+        try {
+            temp = Files.createTempFile(file.getParentFile().toPath(), "tmp", null);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int count: fanout) {
+                out.writeInt(count);
+            }
+            for (String hash: entries.keySet()) {
+                out.write(toBytes(hash));
+            }
+            for (long value: entries.values()) {
+                out.writeLong(value);
+            }
+            if (trailer != null) {
+                out.writeLong(trailer);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+
+        try {
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Open the table stored in FILE. Returns null if FILE does not exist.
+     * @param file
+     * @return
+     */
+    static HashIndex open(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("corrupted index " + file.getName());
+            }
+            return new HashIndex(buffer);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** The mapped content of the table. */
+    private final MappedByteBuffer buffer;
+    /** The number of hashes in the table. */
+    private final int size;
+
+    private HashIndex(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        this.size = buffer.getInt(HEADER_BYTES - 4);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String hashAt(int i) {
+        StringBuilder sb = new StringBuilder(Utils.UID_LENGTH);
+        int position = HEADER_BYTES + i * HASH_BYTES;
+        for (int j = 0; j < HASH_BYTES; j++) {
+            int b = buffer.get(position + j) & 0xff;
+            sb.append(Character.forDigit(b >> 4, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    public long valueAt(int i) {
+        return buffer.getLong(HEADER_BYTES + size * HASH_BYTES + i * 8);
+    }
+
+    /**
+     * Return the trailer of the table, or -1 if it was written without one.
+     * @return
+     */
+    public long trailer() {
+        int position = HEADER_BYTES + size * (HASH_BYTES + 8);
+        if (buffer.capacity() < position + 8) {
+            return -1;
+        }
+        return buffer.getLong(position);
+    }
+
+    /**
+     * Return the value of the given full hash, or -1 if it is not in the table.
+     * @param hash
+     * @return
+     */
+    public long get(String hash) {
+        int i = lowerBound(hash);
+        if (i < size && hashAt(i).equals(hash)) {
+            return valueAt(i);
+        }
+        return -1;
+    }
+
+    /**
+     * Return all the hashes which start with the given hexadecimal prefix.
+     * @param prefix
+     * @return
+     */
+    public List<String> findByPrefix(String prefix) {
+        List<String> results = new ArrayList<>();
+        for (int i = lowerBound(prefix); i < size; i++) {
+            String hash = hashAt(i);
+            if (!hash.startsWith(prefix)) {
+                break;
+            }
+            results.add(hash);
+        }
+        return results;
+    }
+
+    /**
+     * Return the index of the first hash which is not less than KEY.
+     * The fan-out table narrows the search to hashes sharing the first byte.
+     * @param key
+     * @return
+     */
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = size;
+        if (key.length() >= 2) {
+            int first = Integer.parseInt(key.substring(0, 2), 16);
+            lo = first == 0 ? 0 : fanout(first - 1);
+            hi = fanout(first);
+        }
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (hashAt(mid).compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int fanout(int i) {
+        return buffer.getInt(8 + i * 4);
+    }
+
+    /**
+     * Convert a hexadecimal hash to its raw bytes.
+     * @param hash
+     * @return
+     */
+    static byte[] toBytes(String hash) {
+        byte[] bytes = new byte[hash.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Convert 20 raw bytes of BYTES starting at OFFSET to a hexadecimal hash.
+     * @param bytes
+     * @param offset
+     * @return
+     */
+    static String toHex(byte[] bytes, int offset) {
+        StringBuilder sb = new StringBuilder(Utils.UID_LENGTH);
+        for (int i = offset; i < offset + HASH_BYTES; i++) {
+            int b = bytes[i] & 0xff;
+            sb.append(Character.forDigit(b >> 4, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Copy all the entries of INDEX into ENTRIES. Does nothing if INDEX is null.
+     * @param index
+     * @param entries
+     */
+    static void copyTo(HashIndex index, Map<String, Long> entries) {
+        if (index == null) {
+            return;
+        }
+        for (int i = 0; i < index.size; i++) {
+            entries.put(index.hashAt(i), index.valueAt(i));
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package gitlet;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 
 import static gitlet.Utils.*;
 import static gitlet.Repository.GITLET_DIR;
 import static gitlet.Repository.HEAD_DIR;
+import static gitlet.Repository.REF_DIR;
 
 /**
  * Represents the Head pointer.
@@ -20,26 +24,83 @@ public class Head {
         return instance;
     }
 
+    /**
+     * Forget the loaded HEAD, so that it is read again.
+     */
+    static synchronized void reset() {
+        instance = null;
+    }
+
     /**
      * Save new branch pointer to HEAD.
      * @param branch
      */
     public static void save(String branch) {
-        writeContents(HEAD_DIR, "ref: refs/heads/" + branch);
+        LockFile lock = LockFile.acquire(HEAD_DIR);
+        lock.write("ref: refs/heads/" + branch);
+        lock.commit();
         instance = null;
     }
 
+    /**
+     * Return the names of all the branches, in order. A branch fetched from
+     * a remote is named by the remote and the branch, as in origin/master.
+     * @return
+     */
+    static List<String> branchNames() {
+        List<String> names = new ArrayList<>();
+        collectBranchNames(REF_DIR, "", names);
+        names.sort(null);
+        return names;
+    }
+
+    private static void collectBranchNames(File dir, String prefix, List<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file: files) {
+            if (file.isDirectory()) {
+                collectBranchNames(file, prefix + file.getName() + "/", names);
+            } else if (!file.getName().endsWith(".lock")) {
+                names.add(prefix + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Point the given ref to HASH, provided it still points to EXPECTED.
+     * The ref is locked and replaced atomically, so two processes updating
+     * the same ref never lose an update: the later one fails instead.
+     * @param ref
+     * @param expected the hash the ref must point to, or null if it must not exist
+     * @param hash
+     */
+    public static void updateRef(File ref, String expected, String hash) {
+        ref.getParentFile().mkdirs();
+        LockFile lock = LockFile.acquire(ref);
+        String actual = ref.exists() ? readContentsAsString(ref) : null;
+        if (!Objects.equals(actual, expected)) {
+            lock.rollback();
+            exitWithError("Cannot update " + ref.getName()
+                    + ": it was changed by another gitlet process.");
+        }
+        lock.write(hash);
+        lock.commit();
+    }
+
     /** The branch file of head pointer. */
     private File branch;
     /** The branch name of head pointer. */
     private String branchName;
 
     /**
-     * Get pointer of HEAD, then advances the pointer.
+     * Advances the branch of HEAD from EXPECTED to HASH.
+     * @param expected the hash the branch points to, or null for a new branch
      * @param hash
      */
-    public void advancePointer(String hash) {
-        writeContents(branch, hash);
+    public void advancePointer(String expected, String hash) {
+        updateRef(branch, expected, hash);
     }
 
     public File getBranch() {
@@ -56,13 +117,14 @@ public class Head {
     }
 
     /**
-     * parse content of HEAD which points to a branch reference.
+     * parse content of HEAD which points to a branch reference. The branch
+     * name is the path of the reference under refs/heads, so a remote-tracking
+     * branch keeps its remote, as in origin/master.
      * @param content
      */
     private void parse(String content) {
         String path = content.substring(5);
-        String[] paths = path.split("/");
-        branchName = paths[paths.length - 1];
-        branch = join(GITLET_DIR, paths);
+        branchName = path.substring("refs/heads/".length());
+        branch = join(GITLET_DIR, path.split("/"));
     }
 }
@@ -0,0 +1,115 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents the lock of a file which is being replaced, such as the index or a ref.
+ * The lock is the file NAME.lock next to it, created exclusively, so that only one
+ * process may replace the file at a time. The new content is written to the lock,
+ * which is then renamed over the file, so that readers never see a partial file
+ * and a crash leaves the old content in place.
+ * @author Jiahao Qin
+ */
+class LockFile {
+    /** The time to wait between attempts to acquire a lock, in milliseconds. */
+    private static final long RETRY_INTERVAL = 20;
+
+    /**
+     * Acquire the lock of FILE, waiting up to core.lockTimeout milliseconds
+     * (1000 by default) while another process holds it. Exits if it cannot be acquired.
+     * @param file
+     * @return
+     */
+    static LockFile acquire(File file) {
+        long deadline = System.currentTimeMillis() + Config.getInt("core.lockTimeout", 1000);
+        while (true) {
+            LockFile lock = tryAcquire(file);
+            if (lock != null) {
+                return lock;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                exitWithError("Unable to lock " + file.getName()
+                        + ": another gitlet process seems to be running."
+                        + " If not, remove " + file.getName() + ".lock.");
+            }
+            try {
+                Thread.sleep(RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exitWithError("Unable to lock " + file.getName() + ".");
+            }
+        }
+    }
+
+    /**
+     * Acquire the lock of FILE, or return null if another process holds it.
+     * @param file
+     * @return
+     */
+    static LockFile tryAcquire(File file) {
+        File lock = new File(file.getPath() + ".lock");
+        try {
+            Files.createFile(lock.toPath());
+        } catch (FileAlreadyExistsException e) {
+            return null;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return new LockFile(file, lock);
+    }
+
+    /** The locked file. */
+    private final File file;
+    /** The lock, which holds the new content. */
+    private final File lock;
+
+    private LockFile(File file, File lock) {
+        this.file = file;
+        this.lock = lock;
+    }
+
+    /**
+     * Write the new content of the locked file.
+     * @param contents byte arrays or strings, as for Utils.writeContents
+     */
+    void write(Object... contents) {
+        writeContents(lock, contents);
+    }
+
+    /**
+     * Replace the locked file with the new content, releasing the lock. The content,
+     * and every object written before it, is flushed to disk first.
+     */
+    void commit() {
+        Fsync.flush(lock);
+        try {
+            Files.move(lock.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            rollback();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Fsync.flushDirectory(file.getParentFile());
+    }
+
+    /**
+     * Release the lock, leaving the locked file unchanged.
+     */
+    void rollback() {
+        lock.delete();
+    }
+
+    /**
+     * Release the lock of a file which was changed in place, as an append-only
+     * file is, rather than replaced. Nothing written to the lock is kept.
+     */
+    void release() {
+        lock.delete();
+    }
+}
@@ -0,0 +1,68 @@
+package gitlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map which keeps at most a fixed number of entries, evicting the least
+ * recently used entry first, and counts the lookups it could and could not answer.
+ * Cached values are shared, so they must not be modified by callers.
+ * @author Jiahao Qin
+ */
+class LruCache<K, V> {
+    private final LinkedHashMap<K, V> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * Create a cache holding at most CAPACITY entries.
+     * @param capacity
+     */
+    LruCache(int capacity) {
+        entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Return the value of the given key, or null if it is not cached.
+     * @param key
+     * @return
+     */
+    synchronized V get(K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized void put(K key, V value) {
+        entries.put(key, value);
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %d hits, %d misses", entries.size(), hits, misses);
+    }
+}
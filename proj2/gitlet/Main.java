@@ -1,5 +1,6 @@
 package gitlet;
 
+import java.util.Arrays;
 
 import static gitlet.Utils.*;
 
@@ -14,6 +15,10 @@ public class Main {
      * <COMMAND> <OPERAND1> <OPERAND2> ...
      */
     public static void main(String[] args) {
+        if (System.getProperty("gitlet.stats") != null && !Daemon.isServing()) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Stats::print));
+        }
+
         int length = args.length;
         if(length == 0) {
             exitWithError("Please enter a command.");
@@ -25,8 +30,10 @@ public class Main {
                 Repository.init();
                 break;
             case "add":
-                validateNumArgs(args, 2);
-                Repository.add(args[1]);
+                if (length < 2) {
+                    exitWithError("Incorrect operands.");
+                }
+                Repository.add(Arrays.copyOfRange(args, 1, length));
                 break;
             case "rm":
                 validateNumArgs(args, 2);
@@ -37,7 +44,18 @@ public class Main {
                 Repository.commit(args[1]);
                 break;
             case "log":
-                Repository.log();
+                int skip = 0;
+                int maxCount = -1;
+                for (int i = 1; i < length; i++) {
+                    if (args[i].startsWith("--max-count=")) {
+                        maxCount = parseCount(args[i].substring("--max-count=".length()));
+                    } else if (args[i].startsWith("--skip=")) {
+                        skip = parseCount(args[i].substring("--skip=".length()));
+                    } else {
+                        exitWithError("Incorrect operands.");
+                    }
+                }
+                Repository.log(skip, maxCount);
                 break;
             case "global-log":
                 Repository.globalLog();
@@ -76,6 +94,85 @@ public class Main {
                 validateNumArgs(args, 2);
                 Repository.merge(args[1]);
                 break;
+            case "diff":
+                if (length == 1) {
+                    Repository.diff();
+                } else if (length == 2 && (args[1].equals("--cached") || args[1].equals("--staged"))) {
+                    Repository.diffCached();
+                } else if (length == 3) {
+                    Repository.diff(args[1], args[2]);
+                } else {
+                    exitWithError("Incorrect operands.");
+                }
+                break;
+            case "config":
+                validateNumArgs(args, 3);
+                Repository.config(args[1], args[2]);
+                break;
+            case "migrate":
+                validateNumArgs(args, 1);
+                Repository.migrate();
+                break;
+            case "gc":
+                validateNumArgs(args, 1);
+                Repository.gc();
+                break;
+            case "clone":
+                int depth = 0;
+                boolean blobs = true;
+                String path = null;
+                for (int i = 1; i < length; i++) {
+                    if (args[i].startsWith("--depth=")) {
+                        depth = parseCount(args[i].substring("--depth=".length()));
+                    } else if (args[i].equals("--filter=blob:none")) {
+                        blobs = false;
+                    } else if (path == null && !args[i].startsWith("--")) {
+                        path = args[i];
+                    } else {
+                        exitWithError("Incorrect operands.");
+                    }
+                }
+                if (path == null) {
+                    exitWithError("Incorrect operands.");
+                }
+                Repository.clone(path, depth, blobs);
+                break;
+            case "add-remote":
+                validateNumArgs(args, 3);
+                Repository.addRemote(args[1], args[2]);
+                break;
+            case "rm-remote":
+                validateNumArgs(args, 2);
+                Repository.rmRemote(args[1]);
+                break;
+            case "fetch":
+                validateNumArgs(args, 3);
+                Repository.fetch(args[1], args[2]);
+                break;
+            case "push":
+                validateNumArgs(args, 3);
+                Repository.push(args[1], args[2]);
+                break;
+            case "pull":
+                validateNumArgs(args, 3);
+                Repository.pull(args[1], args[2]);
+                break;
+            case "upload-pack":
+                validateNumArgs(args, 1);
+                Repository.uploadPack();
+                break;
+            case "receive-pack":
+                validateNumArgs(args, 1);
+                Repository.receivePack();
+                break;
+            case "daemon":
+                if (length == 2 && args[1].equals("stop")) {
+                    Repository.stopDaemon();
+                } else {
+                    validateNumArgs(args, 1);
+                    Repository.daemon();
+                }
+                break;
             default:
                 exitWithError("No command with that name exists.");
         }
@@ -93,4 +190,22 @@ public class Main {
             exitWithError("Incorrect operands.");
         }
     }
+
+    /**
+     * Parse the value of a count option, which must be a non-negative number.
+     * @param value
+     * @return
+     */
+    private static int parseCount(String value) {
+        try {
+            int count = Integer.parseInt(value);
+            if (count >= 0) {
+                return count;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        exitWithError("Incorrect operands.");
+        return 0;
+    }
 }
@@ -0,0 +1,562 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+
+import static gitlet.Repository.OBJECT_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Represents the pack file which consolidates loose objects.
+ * The pack is append-only: every entry is a type byte, the length of the
+ * payload and the payload, which is exactly the content of the loose object.
+ * The pack index maps the hash of every packed object to the offset of its entry.
+ * Dropping objects rewrites the pack as a new generation, named by the index.
+ * @author Jiahao Qin
+ */
+class Pack {
+    /** The pack directory. */
+    static final File PACK_DIR = join(OBJECT_DIR, "pack");
+    /** The pack file written before packs had generations. */
+    static final File PACK_FILE = join(PACK_DIR, "objects.pack");
+    /** The index of the pack file. */
+    static final File INDEX_FILE = join(PACK_DIR, "objects.idx");
+
+    /** The type of a commit entry. */
+    static final byte COMMIT = 1;
+    /** The type of a blob entry stored raw, as blobs were saved before records. */
+    static final byte RAW_BLOB = 2;
+    /** The type of a blob entry stored as a compressed full or delta record. */
+    static final byte BLOB = 3;
+    /** The type of a tree entry. */
+    static final byte TREE = 4;
+    /** The type of a chunk entry, a deflated part of a chunked blob. */
+    static final byte CHUNK = 5;
+
+    /** The length of the header of an entry. */
+    private static final int ENTRY_HEADER = 5;
+    /** The maximum length of the payload of an entry. Larger objects stay loose. */
+    private static final long MAX_ENTRY = Integer.MAX_VALUE;
+
+    private static Pack instance;
+
+    /**
+     * Return the opened pack, or null if the repository has no pack yet.
+     * @return
+     */
+    static synchronized Pack getInstance() {
+        if (instance == null && INDEX_FILE.exists()) {
+            instance = new Pack();
+        }
+        return instance;
+    }
+
+    /**
+     * Close the opened pack, so that the pack named by the index is opened again.
+     */
+    static synchronized void reset() {
+        if (instance != null) {
+            try {
+                instance.channel.close();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * Return the payload of the packed object with the given hash,
+     * or null if the object is not packed.
+     * @param hash
+     * @return
+     */
+    static byte[] read(String hash) {
+        Pack pack = getInstance();
+        if (pack == null) {
+            return null;
+        }
+
+        long offset = pack.index.get(hash);
+        if (offset < 0) {
+            return null;
+        }
+        return pack.payload(offset);
+    }
+
+    /**
+     * Open the payload of the packed object with the given hash as a stream
+     * over the mapped pack, or return null if the object is not packed.
+     * @param hash
+     * @return
+     */
+    static InputStream open(String hash) {
+        Pack pack = getInstance();
+        if (pack == null) {
+            return null;
+        }
+
+        long offset = pack.index.get(hash);
+        if (offset < 0) {
+            return null;
+        }
+        int length = pack.region(offset, ENTRY_HEADER).getInt(1);
+        return new BufferInputStream(pack.region(offset + ENTRY_HEADER, length));
+    }
+
+    /**
+     * Verify whether the object with the given hash is packed.
+     * @param hash
+     * @return
+     */
+    static boolean contains(String hash) {
+        Pack pack = getInstance();
+        return pack != null && pack.index.get(hash) >= 0;
+    }
+
+    /**
+     * Return the type of the packed object with the given hash, or -1 if it is not packed.
+     * @param hash
+     * @return
+     */
+    static byte typeOf(String hash) {
+        Pack pack = getInstance();
+        if (pack == null) {
+            return -1;
+        }
+
+        long offset = pack.index.get(hash);
+        return offset < 0 ? -1 : pack.type(offset);
+    }
+
+    /**
+     * Return the hashes of all the packed objects of the given type.
+     * @param type
+     * @return
+     */
+    static List<String> hashesOf(byte type) {
+        List<String> hashes = new ArrayList<>();
+        Pack pack = getInstance();
+        if (pack == null) {
+            return hashes;
+        }
+
+        for (int i = 0; i < pack.index.size(); i++) {
+            if (pack.type(pack.index.valueAt(i)) == type) {
+                hashes.add(pack.index.hashAt(i));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Return the hashes of all the packed objects, sorted.
+     * @return
+     */
+    static List<String> hashes() {
+        List<String> hashes = new ArrayList<>();
+        Pack pack = getInstance();
+        if (pack != null) {
+            for (int i = 0; i < pack.index.size(); i++) {
+                hashes.add(pack.index.hashAt(i));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Return the hashes of all the packed objects which start with the given prefix.
+     * @param prefix
+     * @return
+     */
+    static List<String> findByPrefix(String prefix) {
+        Pack pack = getInstance();
+        if (pack == null) {
+            return new ArrayList<>();
+        }
+        return pack.index.findByPrefix(prefix);
+    }
+
+    /**
+     * Move the loose objects which KEEP accepts into the pack; the others stay loose.
+     * New entries are appended to the pack and flushed to disk before the index
+     * is rewritten, and loose objects are only deleted once the index points to them,
+     * so an interrupted repack never loses an object.
+     * If KEEP rejects packed objects, the pack is instead rewritten with the other
+     * objects under a new generation, and the index, which names the generation in its
+     * trailer, is replaced last. Rejected packed objects are dropped if the pack was last
+     * written before EXPIRY, and are written back as loose objects otherwise, so that
+     * they are dropped once they are old enough, like any loose object.
+     * @param keep
+     * @param expiry the time in milliseconds before which rejected objects are dropped
+     * @param dropped called with the hash and the length of every dropped object
+     */
+    static void repack(Predicate<String> keep, long expiry, ObjLongConsumer<String> dropped) {
+        PACK_DIR.mkdir();
+        Pack old = getInstance();
+        long generation = old == null ? -1 : old.index.trailer();
+        List<String> rejected = new ArrayList<>();
+        if (old != null) {
+            for (int i = 0; i < old.index.size(); i++) {
+                String hash = old.index.hashAt(i);
+                if (!keep.test(hash)) {
+                    rejected.add(hash);
+                }
+            }
+        }
+
+        boolean rewrite = !rejected.isEmpty();
+        TreeMap<String, Long> entries = new TreeMap<>();
+        if (rewrite) {
+            boolean expired = old.file.lastModified() < expiry;
+            for (String hash: rejected) {
+                long offset = old.index.get(hash);
+                if (expired) {
+                    dropped.accept(hash, ENTRY_HEADER + old.length(offset));
+                } else {
+                    old.writeLoose(hash, offset);
+                }
+            }
+            generation++;
+        } else {
+            HashIndex.copyTo(old == null ? null : old.index, entries);
+        }
+
+        File file = packFile(generation);
+        List<File> looseFiles = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            if (rewrite) {
+                // left over by an interrupted rewrite, which no index points to
+                channel.truncate(0);
+            }
+            Appender appender = new Appender(channel, entries, looseFiles, keep);
+            if (rewrite) {
+                for (int i = 0; i < old.index.size(); i++) {
+                    String hash = old.index.hashAt(i);
+                    if (keep.test(hash)) {
+                        appender.appendPacked(hash, old, old.index.valueAt(i));
+                    }
+                }
+            }
+            appender.appendFanOut(join(OBJECT_DIR, "commits"), COMMIT);
+            appender.appendFanOut(join(OBJECT_DIR, "trees"), TREE);
+            appender.appendFanOut(join(OBJECT_DIR, "blobs"), BLOB);
+            appender.appendFanOut(join(OBJECT_DIR, "chunks"), CHUNK);
+
+            File blobs = join(OBJECT_DIR, "blobs");
+            for (String hash: plainFilenamesIn(blobs)) {
+                appender.append(hash, join(blobs, hash), RAW_BLOB);
+            }
+
+            appender.out.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+
+        Fsync.flush(null);
+        HashIndex.write(INDEX_FILE, entries, generation < 0 ? null : generation);
+        instance = null;
+
+        for (File object: looseFiles) {
+            object.delete();
+        }
+        for (String dir: new String[] {"commits", "trees", "blobs", "chunks"}) {
+            File[] prefixDirs = join(OBJECT_DIR, dir).listFiles(File::isDirectory);
+            if (prefixDirs != null) {
+                for (File prefixDir: prefixDirs) {
+                    prefixDir.delete();
+                }
+            }
+        }
+        if (rewrite) {
+            for (String name: plainFilenamesIn(PACK_DIR)) {
+                if (name.endsWith(".pack") && !name.equals(file.getName())) {
+                    join(PACK_DIR, name).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the stored bytes of the object with the given hash, the content of its
+     * loose object or its packed payload, or null if it is not stored with the given type.
+     * @param hash
+     * @param type
+     * @return
+     */
+    static byte[] readObject(String hash, byte type) {
+        File object = looseFile(hash, type);
+        if (object.exists()) {
+            return readContents(object);
+        }
+        return typeOf(hash) == type ? read(hash) : null;
+    }
+
+    /**
+     * Verify whether the object with the given hash and type is stored,
+     * loose or packed.
+     * @param hash
+     * @param type
+     * @return
+     */
+    static boolean hasObject(String hash, byte type) {
+        return looseFile(hash, type).exists() || typeOf(hash) == type;
+    }
+
+    /**
+     * Store BYTES, as returned by readObject, as the loose object
+     * with the given hash and type.
+     * @param hash
+     * @param type
+     * @param bytes
+     */
+    static void writeObject(String hash, byte type, byte[] bytes) {
+        File object = looseFile(hash, type);
+        object.getParentFile().mkdirs();
+        writeAtomically(object, bytes);
+    }
+
+    /**
+     * Make the object with the given hash and type count as new for gc, as a command
+     * is about to refer to it again: its loose object is touched, or if it is packed,
+     * it is written back as a loose object, since an unreachable packed object may be
+     * dropped however recently it was reused. Returns false if it is not stored.
+     * @param hash
+     * @param type
+     * @return
+     */
+    static boolean freshen(String hash, byte type) {
+        File object = looseFile(hash, type);
+        if (object.setLastModified(System.currentTimeMillis())) {
+            return true;
+        }
+        if (typeOf(hash) != type) {
+            return false;
+        }
+        writeObject(hash, type, read(hash));
+        return true;
+    }
+
+    /**
+     * Return the pack file of the given generation. Packs written before
+     * generations existed, whose index has no trailer, are generation -1.
+     * @param generation
+     * @return
+     */
+    private static File packFile(long generation) {
+        return generation < 0 ? PACK_FILE : join(PACK_DIR, "objects-" + generation + ".pack");
+    }
+
+    /**
+     * Return the loose object of an object with the given hash and type.
+     * @param hash
+     * @param type
+     * @return
+     */
+    private static File looseFile(String hash, byte type) {
+        switch (type) {
+            case COMMIT:
+                return join(OBJECT_DIR, "commits", hash.substring(0, 2), hash.substring(2));
+            case TREE:
+                return join(OBJECT_DIR, "trees", hash.substring(0, 2), hash.substring(2));
+            case BLOB:
+                return Blob.objectFile(hash);
+            case CHUNK:
+                return Chunks.objectFile(hash);
+            default:
+                return join(OBJECT_DIR, "blobs", hash);
+        }
+    }
+
+    /**
+     * Appends loose objects to the end of the pack.
+     */
+    private static class Appender {
+        private final DataOutputStream out;
+        /** The offset of the next entry. */
+        private long offset;
+        /** The offsets of all the packed objects. */
+        private final TreeMap<String, Long> entries;
+        /** The loose objects which have been packed. */
+        private final List<File> looseFiles;
+        /** Accepts the loose objects to pack. */
+        private final Predicate<String> keep;
+
+        Appender(FileChannel channel, TreeMap<String, Long> entries,
+                 List<File> looseFiles, Predicate<String> keep) throws IOException {
+            this.offset = channel.size();
+            channel.position(offset);
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            this.entries = entries;
+            this.looseFiles = looseFiles;
+            this.keep = keep;
+        }
+
+        /**
+         * Append all the loose objects stored in the fan-out directories of DIR.
+         * @param dir
+         * @param type
+         */
+        void appendFanOut(File dir, byte type) throws IOException {
+            File[] prefixDirs = dir.listFiles(File::isDirectory);
+            if (prefixDirs == null) {
+                return;
+            }
+
+            for (File prefixDir: prefixDirs) {
+                for (String hashFragment: plainFilenamesIn(prefixDir)) {
+                    append(prefixDir.getName() + hashFragment, join(prefixDir, hashFragment), type);
+                }
+            }
+        }
+
+        /**
+         * Append an entry with the content of the loose object unless it is packed already.
+         * The content is streamed. Temporary files and objects too large for an entry are skipped.
+         * @param hash
+         * @param object
+         * @param type
+         */
+        void append(String hash, File object, byte type) throws IOException {
+            long length = object.length();
+            if (hash.length() != UID_LENGTH || length > MAX_ENTRY || !keep.test(hash)) {
+                return;
+            }
+
+            if (!entries.containsKey(hash)) {
+                entries.put(hash, offset);
+                out.writeByte(type);
+                out.writeInt((int) length);
+                Files.copy(object.toPath(), out);
+                offset += ENTRY_HEADER + length;
+            }
+            looseFiles.add(object);
+        }
+
+        /**
+         * Append a copy of the entry at OFFSET in the pack FROM.
+         * @param hash
+         * @param from
+         * @param offset
+         */
+        void appendPacked(String hash, Pack from, long offset) throws IOException {
+            int length = from.length(offset);
+            ByteBuffer payload = from.region(offset + ENTRY_HEADER, length);
+            entries.put(hash, this.offset);
+            out.writeByte(from.type(offset));
+            out.writeInt(length);
+            byte[] buffer = new byte[64 * 1024];
+            while (payload.hasRemaining()) {
+                int n = Math.min(buffer.length, payload.remaining());
+                payload.get(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+            this.offset += ENTRY_HEADER + length;
+        }
+    }
+
+    /** The index of the pack. */
+    private final HashIndex index;
+    /** The pack file of the generation named by the index. */
+    private final File file;
+    /** The pack file, mapped as a whole if it is small enough. */
+    private final ByteBuffer mapped;
+    /** The channel of the pack file, used if the pack is too large to be mapped at once. */
+    private final FileChannel channel;
+
+    private Pack() {
+        try {
+            index = HashIndex.open(INDEX_FILE);
+            file = packFile(index.trailer());
+            channel = new RandomAccessFile(file, "r").getChannel();
+            long size = channel.size();
+            mapped = size <= Integer.MAX_VALUE
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Return a read-only view of LENGTH bytes of the pack starting at OFFSET.
+     * @param offset
+     * @param length
+     * @return
+     */
+    private ByteBuffer region(long offset, int length) {
+        if (mapped != null) {
+            return mapped.slice((int) offset, length);
+        }
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Represents a stream over a region of the mapped pack.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+    }
+
+    /**
+     * Write the entry at OFFSET back as the loose object with the given hash.
+     */
+    private void writeLoose(String hash, long offset) {
+        File object = looseFile(hash, type(offset));
+        object.getParentFile().mkdirs();
+        writeAtomically(object, payload(offset));
+    }
+
+    private byte type(long offset) {
+        return region(offset, ENTRY_HEADER).get(0);
+    }
+
+    private int length(long offset) {
+        return region(offset, ENTRY_HEADER).getInt(1);
+    }
+
+    private byte[] payload(long offset) {
+        int length = length(offset);
+        byte[] payload = new byte[length];
+        region(offset + ENTRY_HEADER, length).get(payload);
+        return payload;
+    }
+}
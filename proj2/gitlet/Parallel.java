@@ -0,0 +1,82 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Runs work over many files on a fork-join pool.
+ * The number of threads is set by core.threads in config,
+ * which defaults to the number of available processors.
+ * @author Jiahao Qin
+ */
+class Parallel {
+    private static ForkJoinPool pool;
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            int threads = Config.getInt("core.threads", Runtime.getRuntime().availableProcessors());
+            pool = new ForkJoinPool(Math.max(1, threads));
+        }
+        return pool;
+    }
+
+    /**
+     * Shut the pool down, so that a new one is made with core.threads read again.
+     */
+    static synchronized void reset() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Return the results of applying F to every item, in the order of ITEMS.
+     * @param items
+     * @param f
+     * @param <T>
+     * @param <R>
+     * @return
+     */
+    static <T, R> List<R> map(Collection<T> items, Function<T, R> f) {
+        if (items.size() <= 1) {
+            List<R> results = new ArrayList<>();
+            for (T item: items) {
+                results.add(f.apply(item));
+            }
+            return results;
+        }
+        return getPool().submit(() -> items.parallelStream().map(f)
+                .collect(Collectors.toList())).join();
+    }
+
+    /**
+     * Apply F to every item.
+     * @param items
+     * @param f
+     * @param <T>
+     */
+    static <T> void forEach(Collection<T> items, Consumer<T> f) {
+        if (items.size() <= 1) {
+            items.forEach(f);
+            return;
+        }
+        getPool().submit(() -> items.parallelStream().forEach(f)).join();
+    }
+
+    /**
+     * Run TASK, which may fork subtasks, on the pool and return its result.
+     * @param task
+     * @param <T>
+     * @return
+     */
+    static <T> T invoke(ForkJoinTask<T> task) {
+        return getPool().invoke(task);
+    }
+}
@@ -0,0 +1,798 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.REF_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Transfers commits and their objects between this repository and a remote,
+ * another repository on disk. The other side is a gitlet process started in the
+ * remote repository, with "upload-pack" to send objects for fetch or with
+ * "receive-pack" to receive them for push, which talks over its standard input
+ * and output. Hashes are sent as 20 raw bytes and strings as modified UTF-8.
+ * The remote first advertises its branches: their number (int), then the name
+ * and the hash of each. For fetch, the fetching side then sends the number of
+ * commits it wants (int) and their hashes, the depth of history it wants (int, 0
+ * for all of it) and whether it wants blobs (byte), and negotiates which commits
+ * both sides have: in rounds of up to 32 of its commits, newest first, with the
+ * number of commits (int) and their hashes, to which the remote answers whether it
+ * has each commit (byte). The ancestors of a commit both sides have are never asked
+ * about, and an empty round ends the negotiation. The remote then sends the pack
+ * of the commits reachable from the wanted commits but not from any common commit,
+ * up to the depth. When no commit is wanted, the fetching side sends the number of
+ * blobs it wants (int) and their hashes instead, and the remote sends their pack.
+ * For push, the pushing side sends the branch, the hash the remote branch must
+ * still have, or "" for a new branch, the new hash and the pack of the commits not
+ * reachable from any branch of the remote. The remote answers with an error
+ * message, "" if the branch was updated. An empty branch name cancels the push.
+ * A pack of commits starts with the number (int) and the hashes of the commits
+ * in it whose parents are not sent and which the other side may not have, which
+ * then become shallow there, see Commit.isShallow. A pack is then a sequence of
+ * objects: the type (byte, as in Pack), the hash, the length (int) and the stored
+ * bytes of the object, ended by the type 0. Commits come after their parents, and
+ * only the trees and blobs which the commits the other side has do not have are sent.
+ * A partial clone has no blobs but those of its own commits: the blobs it misses
+ * are fetched from the remote named by core.partialClone when they are read.
+ * @author Jiahao Qin
+ */
+class Remote {
+    /** The number of commits in a round of negotiation. */
+    private static final int ROUND = 32;
+
+    private static final byte END = 0;
+
+    /** The config key of the remote a partial clone fetches missing blobs from. */
+    static final String PARTIAL_CLONE_KEY = "core.partialClone";
+
+    /**
+     * Represents a connection to a gitlet process in a remote repository.
+     */
+    private static class Connection implements Closeable {
+        private final Process process;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        /** The branches of the remote, with the hash of their commit. */
+        private final Map<String, String> refs = new LinkedHashMap<>();
+
+        private Connection(Process process) {
+            this.process = process;
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream(), 1 << 16));
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), 1 << 16));
+        }
+
+        /**
+         * Start gitlet with the given command in the remote repository DIR,
+         * and read the branches it advertises. Exits if the remote fails.
+         * @param dir
+         * @param command
+         * @return
+         */
+        static Connection open(File dir, String command) {
+            List<String> args = List.of(
+                    new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-cp", absoluteClassPath(), "gitlet.Main", command);
+            Connection connection;
+            try {
+                connection = new Connection(new ProcessBuilder(args).directory(dir)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT).start());
+            } catch (IOException e) {
+                exitWithError("Cannot start gitlet in the remote repository: " + e.getMessage());
+                return null;
+            }
+            try {
+                for (int i = connection.in.readInt(); i > 0; i--) {
+                    connection.refs.put(connection.in.readUTF(), readHash(connection.in));
+                }
+            } catch (IOException e) {
+                exitWithError(connection.failure());
+            }
+            return connection;
+        }
+
+        /**
+         * Return the message of a transfer which failed as the connection was lost.
+         * The remote process prints the reason to the standard error, which is shared,
+         * so the message only gives its exit status.
+         * @return
+         */
+        String failure() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the remote has already exited
+            }
+            int status;
+            try {
+                status = process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroy();
+                status = -1;
+            }
+            return "Lost the connection to the remote repository:"
+                    + " its gitlet process exited with status " + status + ".";
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Save the remote with the given name, at PATH, the .gitlet directory of
+     * the remote repository or the repository itself, with '/' between names.
+     * @param name
+     * @param path
+     */
+    static void add(String name, String path) {
+        if (Config.get(pathKey(name), null) != null) {
+            exitWithError("A remote with that name already exists.");
+        }
+        Config.set(pathKey(name), path);
+    }
+
+    /**
+     * Remove the remote with the given name.
+     * @param name
+     */
+    static void remove(String name) {
+        if (Config.get(pathKey(name), null) == null) {
+            exitWithError("A remote with that name does not exist.");
+        }
+        Config.unset(pathKey(name));
+    }
+
+    private static String pathKey(String name) {
+        return "remote." + name + ".path";
+    }
+
+    /**
+     * Return the directory of the remote repository with the given name.
+     * @param name
+     * @return
+     */
+    private static File remoteDir(String name) {
+        String path = Config.get(pathKey(name), null);
+        if (path == null) {
+            exitWithError("A remote with that name does not exist.");
+        }
+        return resolve(path);
+    }
+
+    /**
+     * Return the directory of the repository at PATH, as saved for a remote.
+     * @param path
+     * @return
+     */
+    static File resolve(String path) {
+        File dir = new File(path.replace('/', File.separatorChar));
+        if (!dir.isAbsolute()) {
+            dir = join(CWD.getPath(), dir.getPath());
+        }
+        if (dir.getName().equals(".gitlet")) {
+            dir = dir.getParentFile();
+        }
+        if (!join(dir, ".gitlet").isDirectory()) {
+            exitWithError("Remote directory not found.");
+        }
+        return dir;
+    }
+
+    /**
+     * Copy the commits of the branch BRANCHNAME of the remote with the given name,
+     * and the objects they need, which this repository does not have yet.
+     * The branch is then saved as the branch REMOTENAME/BRANCHNAME.
+     * @param remoteName
+     * @param branchName
+     */
+    static void fetch(String remoteName, String branchName) {
+        File dir = remoteDir(remoteName);
+        String hash;
+        Connection connection = Connection.open(dir, "upload-pack");
+        try (connection) {
+            hash = connection.refs.get(branchName);
+            if (hash == null || Commit.exists(hash)) {
+                connection.out.writeInt(0);
+                connection.out.writeInt(0);
+            } else {
+                fetchCommits(connection, List.of(hash), 0,
+                        !remoteName.equals(Config.get(PARTIAL_CLONE_KEY, null)));
+            }
+        } catch (IOException e) {
+            exitWithError(connection.failure());
+            return;
+        }
+        if (hash == null) {
+            exitWithError("That remote does not have that branch.");
+        }
+
+        File ref = join(REF_DIR, remoteName, branchName);
+        Head.updateRef(ref, ref.exists() ? readContentsAsString(ref) : null, hash);
+    }
+
+    /**
+     * Copy every branch of the remote with the given name into this new repository,
+     * as the branches REMOTENAME/BRANCHNAME, with at most DEPTH commits of history
+     * from each branch. Returns the name of the branch to check out: master,
+     * or the first branch if the remote has no master, or null if it has no branch.
+     * @param remoteName
+     * @param depth the number of commits of history to copy, or 0 for all of them
+     * @param blobs whether the blobs are copied too
+     * @return
+     */
+    static String cloneBranches(String remoteName, int depth, boolean blobs) {
+        File dir = remoteDir(remoteName);
+        Map<String, String> refs;
+        Connection connection = Connection.open(dir, "upload-pack");
+        try (connection) {
+            refs = connection.refs;
+            if (refs.isEmpty()) {
+                connection.out.writeInt(0);
+                connection.out.writeInt(0);
+            } else {
+                fetchCommits(connection, new ArrayList<>(new LinkedHashSet<>(refs.values())),
+                        depth, blobs);
+            }
+        } catch (IOException e) {
+            exitWithError(connection.failure());
+            return null;
+        }
+
+        for (Map.Entry<String, String> entry: refs.entrySet()) {
+            Head.updateRef(join(REF_DIR, remoteName, entry.getKey()), null, entry.getValue());
+        }
+        if (refs.containsKey("master")) {
+            return "master";
+        }
+        return refs.isEmpty() ? null : refs.keySet().iterator().next();
+    }
+
+    /**
+     * Ask the remote for the commits WANTS and their history up to DEPTH, with
+     * their blobs if BLOBS is set, negotiate and store the pack it sends.
+     */
+    private static void fetchCommits(Connection connection, List<String> wants, int depth,
+                                     boolean blobs) throws IOException {
+        writeHashes(connection.out, wants);
+        connection.out.writeInt(depth);
+        connection.out.writeBoolean(blobs);
+        negotiate(connection);
+        List<String> shallow = readHashes(connection.in);
+        Stats.add("fetch.commits", readPack(connection.in, shallow).size());
+    }
+
+    /**
+     * Copy the blobs of BLOBS which this repository does not have from the remote of
+     * a partial clone, all at once. Does nothing if this is not a partial clone.
+     * @param blobs
+     */
+    static void fetchMissing(Collection<Blob> blobs) {
+        if (Config.get(PARTIAL_CLONE_KEY, null) == null) {
+            return;
+        }
+        Set<String> hashes = new LinkedHashSet<>();
+        for (Blob blob: blobs) {
+            hashes.add(blob.getHash());
+        }
+        fetchBlobs(hashes);
+    }
+
+    /**
+     * Copy the blobs with the given hashes, and the objects their records refer to,
+     * from the remote of a partial clone. Returns false if this is not a partial
+     * clone, so the blobs cannot be fetched. Fetches are serialized, since files are
+     * checked out in parallel.
+     * @param hashes
+     * @return
+     */
+    static synchronized boolean fetchBlobs(Collection<String> hashes) {
+        String remoteName = Config.get(PARTIAL_CLONE_KEY, null);
+        if (remoteName == null) {
+            return false;
+        }
+        List<String> missing = new ArrayList<>();
+        for (String hash: hashes) {
+            if (!Blob.exists(hash)) {
+                missing.add(hash);
+            }
+        }
+        if (missing.isEmpty()) {
+            return true;
+        }
+
+        Connection connection = Connection.open(remoteDir(remoteName), "upload-pack");
+        try (connection) {
+            connection.out.writeInt(0);
+            writeHashes(connection.out, missing);
+            connection.out.flush();
+            readPack(connection.in, List.of());
+        } catch (IOException e) {
+            exitWithError(connection.failure());
+            return false;
+        }
+        Stats.add("fetch.blobs", missing.size());
+        return true;
+    }
+
+    /**
+     * Find the commits both sides have, walking the history of every branch from
+     * the newest commits and asking the remote about them in rounds.
+     */
+    private static void negotiate(Connection connection) throws IOException {
+        CommitGraph graph = CommitGraph.getInstance();
+        CompressedBitmap common = new CompressedBitmap();
+        Set<String> asked = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>(branchTips());
+        while (true) {
+            List<String> round = new ArrayList<>();
+            while (round.size() < ROUND && !queue.isEmpty()) {
+                String hash = queue.remove();
+                if (asked.add(hash) && !common.contains(graph.ensure(hash))) {
+                    round.add(hash);
+                }
+            }
+
+            connection.out.writeInt(round.size());
+            for (String hash: round) {
+                writeHash(connection.out, hash);
+            }
+            connection.out.flush();
+            if (round.isEmpty()) {
+                return;
+            }
+
+            for (String hash: round) {
+                if (connection.in.readBoolean()) {
+                    common.or(graph.reachable(List.of(hash)));
+                } else {
+                    queue.addAll(Commit.getCommitFromHash(hash).getParentIds());
+                }
+            }
+        }
+    }
+
+    /**
+     * Serve a fetch, as the process started in the remote repository.
+     */
+    static void uploadPack() {
+        DataInputStream in = standardInput();
+        DataOutputStream out = standardOutput();
+        try {
+            advertise(out);
+            List<String> wants = readHashes(in);
+            if (wants.isEmpty()) {
+                List<String> blobs = readHashes(in);
+                if (blobs.isEmpty()) {
+                    return;
+                }
+                PackWriter writer = new PackWriter(out, new HashSet<>(), true);
+                for (String hash: blobs) {
+                    writer.writeBlob(hash);
+                }
+                out.writeByte(END);
+                out.flush();
+                return;
+            }
+            int depth = in.readInt();
+            boolean blobs = in.readBoolean();
+
+            List<String> common = new ArrayList<>();
+            for (int n = in.readInt(); n > 0; n = in.readInt()) {
+                for (int i = 0; i < n; i++) {
+                    String hash = readHash(in);
+                    boolean has = Commit.exists(hash);
+                    if (has) {
+                        common.add(hash);
+                    }
+                    out.writeBoolean(has);
+                }
+                out.flush();
+            }
+            writePack(out, wants, common, depth, blobs);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Copy the commits of the current branch, and the objects they need, which the
+     * remote with the given name does not have yet, and advance its branch BRANCHNAME
+     * to the current commit. The branch of the remote must be in the history of the
+     * current commit, so that no commit of the remote is lost.
+     * @param remoteName
+     * @param branchName
+     */
+    static void push(String remoteName, String branchName) {
+        File dir = remoteDir(remoteName);
+        String head = Commit.getCurrentCommit().getHash();
+        CommitGraph graph = CommitGraph.getInstance();
+        String error;
+        Connection connection = Connection.open(dir, "receive-pack");
+        try (connection) {
+            String remoteHash = connection.refs.get(branchName);
+            if (remoteHash != null
+                    && !(Commit.exists(remoteHash) && graph.isAncestor(remoteHash, head))) {
+                connection.out.writeUTF("");
+                error = "Please pull down remote changes before pushing.";
+            } else {
+                connection.out.writeUTF(branchName);
+                connection.out.writeUTF(remoteHash == null ? "" : remoteHash);
+                writeHash(connection.out, head);
+                List<String> common = new ArrayList<>();
+                for (String hash: connection.refs.values()) {
+                    if (Commit.exists(hash)) {
+                        common.add(hash);
+                    }
+                }
+                Stats.add("push.commits",
+                        writePack(connection.out, List.of(head), common, 0, true));
+                connection.out.flush();
+                error = connection.in.readUTF();
+            }
+        } catch (IOException e) {
+            exitWithError(connection.failure());
+            return;
+        }
+        if (!error.isEmpty()) {
+            exitWithError(error);
+        }
+    }
+
+    /**
+     * Serve a push, as the process started in the remote repository.
+     */
+    static void receivePack() {
+        DataInputStream in = standardInput();
+        DataOutputStream out = standardOutput();
+        try {
+            advertise(out);
+            String branchName = in.readUTF();
+            if (branchName.isEmpty()) {
+                return;
+            }
+            String expected = in.readUTF();
+            String hash = readHash(in);
+            readPack(in, readHashes(in));
+
+            File ref = join(REF_DIR, branchName);
+            String actual = ref.exists() ? readContentsAsString(ref) : null;
+            if (!Objects.equals(actual, expected.isEmpty() ? null : expected)) {
+                out.writeUTF("Please pull down remote changes before pushing.");
+            } else {
+                Head.updateRef(ref, actual, hash);
+                out.writeUTF("");
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Send the branches of this repository.
+     */
+    private static void advertise(DataOutputStream out) throws IOException {
+        List<String> names = Head.branchNames();
+        out.writeInt(names.size());
+        for (String name: names) {
+            out.writeUTF(name);
+            writeHash(out, readContentsAsString(join(REF_DIR, name)));
+        }
+        out.flush();
+    }
+
+    /**
+     * Return the commits of all the branches.
+     * @return
+     */
+    private static List<String> branchTips() {
+        List<String> tips = new ArrayList<>();
+        for (String name: Head.branchNames()) {
+            String hash = readContentsAsString(join(REF_DIR, name));
+            if (Commit.exists(hash)) {
+                tips.add(hash);
+            }
+        }
+        return tips;
+    }
+
+    /**
+     * Write the pack of the commits reachable from TIPS but not from COMMON,
+     * commits the other side has, with the trees they need, and the blobs too if
+     * BLOBS is set. With a DEPTH, only the commits at most DEPTH commits away from
+     * TIPS are written. The pack starts with the commits whose parents are not
+     * written, since the other side may not have them.
+     * Returns the number of commits written.
+     */
+    private static int writePack(DataOutputStream out, Collection<String> tips,
+                                 Collection<String> common, int depth,
+                                 boolean blobs) throws IOException {
+        CommitGraph graph = CommitGraph.getInstance();
+        CompressedBitmap known = graph.reachable(common);
+        CompressedBitmap selected = depth > 0 ? nearest(tips, known, depth) : graph.reachable(tips);
+        List<Commit> commits = new ArrayList<>();
+        selected.forEach(position -> {
+            if (!known.contains(position)) {
+                commits.add(Commit.getCommitFromHash(graph.hashAt(position)));
+            }
+        });
+
+        // the objects of the common parents of the commits are not sent
+        Set<String> sent = new HashSet<>();
+        List<String> shallow = new ArrayList<>();
+        for (Commit commit: commits) {
+            if (Commit.isShallow(commit.getHash())) {
+                shallow.add(commit.getHash());
+            }
+            for (String parentId: commit.getParentIds()) {
+                int position = graph.ensure(parentId);
+                if (known.contains(position)) {
+                    markObjects(Commit.getCommitFromHash(parentId), sent);
+                } else if (!selected.contains(position)) {
+                    shallow.add(commit.getHash());
+                }
+            }
+        }
+        writeHashes(out, new LinkedHashSet<>(shallow));
+
+        PackWriter writer = new PackWriter(out, sent, blobs);
+        for (Commit commit: commits) {
+            writer.write(commit.getHash(), Pack.COMMIT);
+            if (commit.getTree() != null) {
+                writer.writeTree(commit.getTree());
+            } else {
+                for (Blob blob: commit.getBlobs().values()) {
+                    writer.writeBlob(blob.getHash());
+                }
+            }
+        }
+        out.writeByte(END);
+        return commits.size();
+    }
+
+    /**
+     * Return the positions of the commits at most DEPTH commits away from TIPS,
+     * themselves included, walking every parent but not past the commits of KNOWN.
+     */
+    private static CompressedBitmap nearest(Collection<String> tips, CompressedBitmap known,
+                                            int depth) {
+        CommitGraph graph = CommitGraph.getInstance();
+        CompressedBitmap result = new CompressedBitmap();
+        List<String> level = new ArrayList<>(tips);
+        for (int i = 0; i < depth && !level.isEmpty(); i++) {
+            List<String> next = new ArrayList<>();
+            for (String hash: level) {
+                int position = graph.ensure(hash);
+                if (result.contains(position) || known.contains(position)) {
+                    continue;
+                }
+                result.add(position);
+                next.addAll(Commit.getCommitFromHash(hash).getParentIds());
+            }
+            level = next;
+        }
+        return result;
+    }
+
+    /**
+     * Add the hashes of the trees and blobs of COMMIT to HASHES.
+     */
+    private static void markObjects(Commit commit, Set<String> hashes) {
+        if (commit.getTree() == null) {
+            for (Blob blob: commit.getBlobs().values()) {
+                hashes.add(blob.getHash());
+            }
+            return;
+        }
+
+        Deque<String> trees = new ArrayDeque<>();
+        trees.push(commit.getTree());
+        while (!trees.isEmpty()) {
+            String hash = trees.pop();
+            if (hashes.add(hash)) {
+                Tree tree = Tree.getTreeFromHash(hash);
+                hashes.addAll(tree.blobHashes());
+                trees.addAll(tree.treeHashes());
+            }
+        }
+    }
+
+    /**
+     * Writes objects to a pack, each at most once.
+     */
+    private static class PackWriter {
+        private final DataOutputStream out;
+        /** The objects written, or which the other side has. */
+        private final Set<String> sent;
+        /** Whether blobs are written, or left out as for a partial clone. */
+        private final boolean blobs;
+
+        PackWriter(DataOutputStream out, Set<String> sent, boolean blobs) {
+            this.out = out;
+            this.sent = sent;
+            this.blobs = blobs;
+        }
+
+        private void write(String hash, byte type) throws IOException {
+            byte[] bytes = Pack.readObject(hash, type);
+            if (bytes == null) {
+                throw error("Missing object %s.", hash);
+            }
+            out.writeByte(type);
+            writeHash(out, hash);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeTree(String hash) throws IOException {
+            if (!sent.add(hash)) {
+                return;
+            }
+            write(hash, Pack.TREE);
+            Tree tree = Tree.getTreeFromHash(hash);
+            for (String blobHash: tree.blobHashes()) {
+                writeBlob(blobHash);
+            }
+            for (String treeHash: tree.treeHashes()) {
+                writeTree(treeHash);
+            }
+        }
+
+        /**
+         * Write the blob with the given hash, and the bases and chunks its record refers to.
+         */
+        void writeBlob(String hash) throws IOException {
+            if (!blobs || !sent.add(hash)) {
+                return;
+            }
+            if (!Blob.exists(hash)) {
+                // a partial clone sends the blobs it has not read yet too
+                fetchBlobs(List.of(hash));
+            }
+            write(hash, Pack.hasObject(hash, Pack.BLOB) ? Pack.BLOB : Pack.RAW_BLOB);
+            List<String> bases = new ArrayList<>();
+            List<String> chunks = new ArrayList<>();
+            Blob.forEachReference(hash, bases::add, chunks::add);
+            for (String base: bases) {
+                writeBlob(base);
+            }
+            for (String chunk: chunks) {
+                if (sent.add(chunk)) {
+                    write(chunk, Pack.CHUNK);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a pack and store the objects this repository does not have as loose
+     * objects, then record the new commits in the commit graph and the commit log.
+     * Commits and trees are stored only if their hash is the hash of their bytes.
+     * The commits of SHALLOW whose parents are missing are first recorded as shallow.
+     * The objects are flushed to disk before this returns, so that a ref may
+     * then point to them. Returns the hashes of the commits.
+     */
+    private static List<String> readPack(DataInputStream in, List<String> shallow)
+            throws IOException {
+        // a missing log would be rebuilt from the commits written below, which
+        // would then be appended to it once more
+        CommitLog.ensure();
+        List<String> commits = new ArrayList<>();
+        for (byte type = in.readByte(); type != END; type = in.readByte()) {
+            String hash = readHash(in);
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            if ((type == Pack.COMMIT || type == Pack.TREE) && !sha1(bytes).equals(hash)) {
+                exitWithError("Received a corrupt object " + hash + ".");
+            }
+            if (!Pack.hasObject(hash, type)) {
+                Pack.writeObject(hash, type, bytes);
+                if (type == Pack.COMMIT) {
+                    commits.add(hash);
+                }
+            }
+        }
+
+        List<String> boundary = new ArrayList<>();
+        for (String hash: shallow) {
+            for (String parentId: Commit.getCommitFromHash(hash).getParentIds()) {
+                if (!Commit.exists(parentId)) {
+                    boundary.add(hash);
+                    break;
+                }
+            }
+        }
+        Commit.addShallow(boundary);
+
+        CommitGraph graph = CommitGraph.getInstance();
+        for (String hash: commits) {
+            Commit commit = Commit.getCommitFromHash(hash);
+            graph.add(commit);
+            CommitLog.append(commit);
+        }
+        Fsync.flush(null);
+        return commits;
+    }
+
+    private static void writeHash(DataOutputStream out, String hash) throws IOException {
+        out.write(HashIndex.toBytes(hash));
+    }
+
+    private static String readHash(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[20];
+        in.readFully(bytes);
+        return HashIndex.toHex(bytes, 0);
+    }
+
+    private static void writeHashes(DataOutputStream out, Collection<String> hashes)
+            throws IOException {
+        out.writeInt(hashes.size());
+        for (String hash: hashes) {
+            writeHash(out, hash);
+        }
+    }
+
+    private static List<String> readHashes(DataInputStream in) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            hashes.add(readHash(in));
+        }
+        return hashes;
+    }
+
+    private static DataInputStream standardInput() {
+        return new DataInputStream(new BufferedInputStream(
+                new FileInputStream(FileDescriptor.in), 1 << 16));
+    }
+
+    /**
+     * Return the standard output, which carries the protocol. Messages printed from
+     * then on, as by exitWithError, go to the standard error instead, which the
+     * other side shares.
+     * @return
+     */
+    private static DataOutputStream standardOutput() {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out), 1 << 16));
+        System.setOut(System.err);
+        return out;
+    }
+
+    private static String absoluteClassPath() {
+        List<String> paths = new ArrayList<>();
+        for (String path: System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!path.isEmpty()) {
+                paths.add(new File(path).getAbsolutePath());
+            }
+        }
+        return String.join(File.pathSeparator, paths);
+    }
+}
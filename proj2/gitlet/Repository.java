@@ -1,8 +1,21 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.BiPredicate;
 
 import static gitlet.Utils.*;
 
@@ -53,16 +66,21 @@ public class Repository {
     }
 
     /**
-     * Add a file to stage for addition.
-     * @param name
+     * Add files to stage for addition.
+     * Each name may be a glob pattern matching files in the working directory.
+     * @param names
      */
-    public static void add(String name) {
+    public static void add(String... names) {
         if (!inRepo()) {
             exitWithError("Not in an initialized Gitlet directory.");
         }
 
+        Set<String> filenames = new TreeSet<>();
+        for (String name: names) {
+            filenames.addAll(expandGlob(name));
+        }
 
-        Stage.getInstance().add(name);
+        Stage.getInstance().add(new ArrayList<>(filenames));
     }
 
     /**
@@ -75,18 +93,23 @@ public class Repository {
             exitWithError("Not in an initialized Gitlet directory.");
         }
 
-        Stage.getInstance().rm(name);
+        Stage.getInstance().rm(WorkingTree.normalize(name));
     }
 
     /**
-     * Display information about each commit in current branch.
+     * Display information about each commit in current branch,
+     * skipping the first SKIP commits and displaying at most MAXCOUNT commits.
+     * @param skip
+     * @param maxCount the number of commits to display, or a negative number for all of them
      */
-    public static void log() {
+    public static void log(int skip, int maxCount) {
         if (!inRepo()) {
             exitWithError("Not in an initialized Gitlet directory.");
         }
-        Commit commit = Commit.getCurrentCommit();
-        commit.recursiveLog();
+
+        PrintWriter out = bufferedStdout();
+        Commit.getCurrentCommit().firstParentLog(out, skip, maxCount);
+        out.flush();
     }
 
     /**
@@ -97,11 +120,12 @@ public class Repository {
             exitWithError("Not in an initialized Gitlet directory.");
         }
 
-        List<String> hashes = Commit.getAllCommitHashes();
-        for (String hash: hashes) {
-            Commit.getCommitFromHash(hash).log();
-            System.out.println();
-        }
+        PrintWriter out = bufferedStdout();
+        CommitLog.forEach(entry -> {
+            Commit.printLog(out, entry.hash, entry.parentIds, entry.timestamp, entry.message);
+            out.println();
+        });
+        out.flush();
     }
 
     /**
@@ -113,18 +137,12 @@ public class Repository {
             exitWithError("Not in an initialized Gitlet directory.");
         }
 
-        List<String> hashes = Commit.getAllCommitHashes();
-        Commit commit;
-        Boolean notFind = true;
+        List<String> hashes = CommitLog.find(message);
         for (String hash: hashes) {
-            commit = Commit.getCommitFromHash(hash);
-            if (commit.getMessage().equals(message)) {
-                notFind = false;
-                System.out.println(hash);
-            }
+            System.out.println(hash);
         }
 
-        if (notFind) {
+        if (hashes.isEmpty()) {
             exitWithError("Found no commit with that message.");
         }
     }
@@ -139,7 +157,7 @@ public class Repository {
         }
 
         System.out.println("=== Branches ===");
-        List<String> branchNames = plainFilenamesIn(REF_DIR);
+        List<String> branchNames = Head.branchNames();
         for (String branchName: branchNames) {
             if (branchName.equals(Head.getInstance().getBranchName())) {
                 System.out.println("*" + branchName);
@@ -151,20 +169,53 @@ public class Repository {
 
         Stage stage = Stage.getInstance();
         TreeMap<String, Blob> stagedFiles = stage.getStaged();
-        TreeMap<String, Blob> trackedFiles = Commit.getCurrentCommit().getBlobs();
+        NavigableSet<String> stagedFilenames = stagedFiles.navigableKeySet();
+        TreeSet<String> removalFileNames = stage.getRemoval();
+
+        // with a watcher, only the paths changed since the status token are looked at
+        Watcher.Changes changes = Watcher.changesSince(stage.getWatchId(), stage.getWatchOffset());
+        Set<String> changedPaths = changes == null ? null : changes.getPaths();
+        WorkingTree.Dir root = null;
+        TreeSet<String> workingFilenames = null;
+        if (changedPaths != null) {
+            workingFilenames = updateFilenames(stage.getWatchedFiles(), changedPaths);
+            Stats.add("status.changed", changedPaths.size());
+        } else {
+            root = WorkingTree.walk();
+        }
+        // directories which still hold the files of their tree in the current commit,
+        // with nothing under them staged, are skipped along with everything under them
+        Map<String, String> unchangedTrees = root == null ? Map.of() : stage.unchangedTrees(root);
+        Map<String, String> readTrees = new HashMap<>();
+        Set<String> skippedDirs = new TreeSet<>();
+        TreeMap<String, Blob> trackedFiles = readFiles(Commit.getCurrentCommit(), (path, hash) -> {
+            if (hash.equals(unchangedTrees.get(path)) && !hasFileUnder(stagedFilenames, path)
+                    && !hasFileUnder(removalFileNames, path)) {
+                skippedDirs.add(path);
+                return true;
+            }
+            readTrees.put(path, hash);
+            return false;
+        });
 
         Set<String> trackedFilenames = new TreeSet<>(trackedFiles.keySet());
-        Set<String> currentFilenames = new TreeSet<>(plainFilenamesIn(CWD));
-        Set<String> stagedFilenames = stagedFiles.keySet();
-        Set<String> removalFileNames = stage.getRemoval();
+        Set<String> currentFilenames = new TreeSet<>();
+        if (root == null) {
+            currentFilenames.addAll(workingFilenames);
+        } else {
+            root.collectFiles(currentFilenames, skippedDirs);
+        }
 
         Set<String> modifiedFiles = new TreeSet<>();
         Set<String> untrackedFiles = new TreeSet<>();
+        Set<String> changedFilenames = new TreeSet<>(stagedFilenames);
+        changedFilenames.addAll(removalFileNames);
 
         for (String stagedFilename: stagedFilenames) {
             if (!currentFilenames.contains(stagedFilename)) {
                 modifiedFiles.add(stagedFilename + " (deleted)");
-            } else if (!stagedFiles.get(stagedFilename).isSameContent(join(CWD, stagedFilename))) {
+            } else if (!isSameContent(stage, stagedFilename, stagedFiles.get(stagedFilename),
+                    changedPaths)) {
                 modifiedFiles.add(stagedFilename + " (modified)");
             }
 
@@ -185,14 +236,54 @@ public class Repository {
             Blob trackedFile = trackedFiles.get(trackedFilename);
             if (!currentFilenames.contains(trackedFilename)) {
                 modifiedFiles.add(trackedFilename + " (deleted)");
-            } else if (!trackedFile.isSameContent(join(CWD, trackedFilename))) {
+                changedFilenames.add(trackedFilename);
+            } else if (!isSameContent(stage, trackedFilename, trackedFile, changedPaths)) {
                 modifiedFiles.add(trackedFilename + " (modified)");
+                changedFilenames.add(trackedFilename);
             }
 
             currentFilenames.remove(trackedFilename);
         }
 
         untrackedFiles.addAll(currentFilenames);
+        changedFilenames.addAll(untrackedFiles);
+
+        Set<String> hashedFilenames = new TreeSet<>(trackedFiles.keySet());
+        hashedFilenames.addAll(stagedFilenames);
+        if (root != null) {
+            // the directories read with no changes under them hold the files of their tree
+            Set<String> changedDirs = new HashSet<>();
+            for (String filename: changedFilenames) {
+                for (int i = filename.lastIndexOf('/'); i >= 0; i = filename.lastIndexOf('/', i - 1)) {
+                    changedDirs.add(filename.substring(0, i));
+                }
+                changedDirs.add("");
+            }
+            readTrees.keySet().removeAll(changedDirs);
+            for (Map.Entry<String, String> entry: unchangedTrees.entrySet()) {
+                if (isUnder(entry.getKey(), skippedDirs)) {
+                    readTrees.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            int hashedCount = hashedFilenames.size();
+            for (String skippedDir: skippedDirs) {
+                root.find(skippedDir).collectFiles(hashedFilenames, Set.of());
+            }
+            Stats.add("status.skipped", hashedFilenames.size() - hashedCount);
+            stage.recordTrees(readTrees, root);
+        }
+        stage.retainStats(hashedFilenames);
+
+        // the token is only moved when there are changes, so that the index is not written
+        if (changes != null && (changedPaths == null || !changedPaths.isEmpty())) {
+            if (workingFilenames == null) {
+                workingFilenames = new TreeSet<>();
+                root.collectFiles(workingFilenames, Set.of());
+            }
+            stage.recordWatch(changes.getId(), changes.getOffset(), workingFilenames);
+        }
+        stage.saveStats();
 
         System.out.println("=== Staged Files ===");
         printIterable(stagedFilenames);
@@ -211,6 +302,210 @@ public class Repository {
         System.out.println();
     }
 
+    /**
+     * Return the files in the working directory, from FILENAMES, the files at the
+     * status token, and CHANGEDPATHS, the paths changed since. Only the changed
+     * paths are read, and the changed directories are walked.
+     * @param filenames
+     * @param changedPaths
+     * @return
+     */
+    private static TreeSet<String> updateFilenames(TreeSet<String> filenames,
+                                                   Set<String> changedPaths) {
+        TreeSet<String> result = new TreeSet<>(filenames);
+        for (String path: changedPaths) {
+            result.remove(path);
+            // '0' is the character after '/'
+            result.subSet(path + "/", path + "0").clear();
+            if (WorkingTree.isFile(path)) {
+                result.add(path);
+            } else {
+                WorkingTree.Dir dir = WorkingTree.walk(path);
+                if (dir != null) {
+                    dir.collectFiles(result, Set.of());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Verify whether the file with the given name in working directory has the same
+     * content as BLOB. Unless CHANGEDPATHS is null, only a file which is one of these
+     * paths, or under one of them, is looked at, and the others are known to be
+     * unchanged since they were last hashed.
+     * @param stage
+     * @param name
+     * @param blob
+     * @param changedPaths
+     * @return
+     */
+    private static boolean isSameContent(Stage stage, String name, Blob blob,
+                                         Set<String> changedPaths) {
+        if (changedPaths == null || isUnder(name, changedPaths)) {
+            return stage.isSameContent(name, blob);
+        }
+        return blob.getHash().equals(stage.cachedHashOf(name));
+    }
+
+    /**
+     * Return the files tracked by COMMIT, keyed by their path, leaving out the
+     * directories for which SKIP returns true, as Tree.readFiles does.
+     * A commit saved before trees existed has no directories to skip.
+     * @param commit
+     * @param skip
+     * @return
+     */
+    private static TreeMap<String, Blob> readFiles(Commit commit,
+                                                   BiPredicate<String, String> skip) {
+        if (commit.getTree() == null) {
+            return commit.getBlobs();
+        }
+        TreeMap<String, Blob> files = new TreeMap<>();
+        Tree.readFiles(commit.getTree(), skip, files);
+        return files;
+    }
+
+    /**
+     * Verify whether any of the given paths is a file under the directory DIR.
+     * @param paths
+     * @param dir
+     * @return
+     */
+    private static boolean hasFileUnder(NavigableSet<String> paths, String dir) {
+        if (dir.isEmpty()) {
+            return !paths.isEmpty();
+        }
+        String next = paths.ceiling(dir + "/");
+        return next != null && next.startsWith(dir + "/");
+    }
+
+    /**
+     * Verify whether PATH is one of the given directories or under one of them.
+     * @param path
+     * @param dirs
+     * @return
+     */
+    private static boolean isUnder(String path, Set<String> dirs) {
+        for (int i = path.length(); i >= 0; i = path.lastIndexOf('/', i - 1)) {
+            if (dirs.contains(path.substring(0, i))) {
+                return true;
+            }
+        }
+        return dirs.contains("");
+    }
+
+    /**
+     * Display the changes of tracked files in the working directory
+     * which have not been staged, as a unified diff against the index.
+     */
+    public static void diff() {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Stage stage = Stage.getInstance();
+        TreeMap<String, String> indexFiles = indexHashes(stage);
+        List<String> existing = new ArrayList<>();
+        for (String filename: indexFiles.keySet()) {
+            if (join(CWD, filename).isFile()) {
+                existing.add(filename);
+            }
+        }
+
+        TreeMap<String, String> workingFiles = new TreeMap<>();
+        List<String> hashes = stage.hashesOf(existing);
+        for (int i = 0; i < existing.size(); i++) {
+            workingFiles.put(existing.get(i), hashes.get(i));
+        }
+        printDiff(indexFiles, workingFiles, true);
+        stage.saveStats();
+    }
+
+    /**
+     * Display the changes staged for the next commit, as a unified diff against the current commit.
+     */
+    public static void diffCached() {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        TreeMap<String, String> headFiles = hashesOf(Commit.getCurrentCommit().getBlobs());
+        printDiff(headFiles, indexHashes(Stage.getInstance()), false);
+    }
+
+    /**
+     * Display the changes between two commits as a unified diff.
+     * @param fromId
+     * @param toId
+     */
+    public static void diff(String fromId, String toId) {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Commit from = Commit.getCommitFromHashPrefix(fromId);
+        Commit to = Commit.getCommitFromHashPrefix(toId);
+        if (from == null || to == null) {
+            exitWithError("No commit with that id exists");
+        }
+
+        printDiff(hashesOf(from.getBlobs()), hashesOf(to.getBlobs()), false);
+    }
+
+    /**
+     * Return the blob hash of every file the index tracks: the files of the
+     * current commit, with the staged files added and the removed files removed.
+     * @param stage
+     * @return
+     */
+    private static TreeMap<String, String> indexHashes(Stage stage) {
+        TreeMap<String, String> files = hashesOf(Commit.getCurrentCommit().getBlobs());
+        files.putAll(hashesOf(stage.getStaged()));
+        files.keySet().removeAll(stage.getRemoval());
+        return files;
+    }
+
+    private static TreeMap<String, String> hashesOf(Map<String, Blob> blobs) {
+        TreeMap<String, String> hashes = new TreeMap<>();
+        for (Blob blob: blobs.values()) {
+            hashes.put(blob.getName(), blob.getHash());
+        }
+        return hashes;
+    }
+
+    /**
+     * Print the unified diff of every file whose hash differs between OLDFILES and NEWFILES.
+     * Files with the same hash are skipped without being read.
+     * @param oldFiles blob hashes keyed by filename
+     * @param newFiles blob hashes keyed by filename
+     * @param newInWorkingDir whether the new files are read from the working directory
+     */
+    private static void printDiff(TreeMap<String, String> oldFiles, TreeMap<String, String> newFiles,
+                                  boolean newInWorkingDir) {
+        Set<String> filenames = new TreeSet<>(oldFiles.keySet());
+        filenames.addAll(newFiles.keySet());
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        try {
+            for (String filename: filenames) {
+                String oldHash = oldFiles.get(filename);
+                String newHash = newFiles.get(filename);
+                if (Objects.equals(oldHash, newHash)) {
+                    continue;
+                }
+
+                Diff.Lines lines = new Diff.Lines();
+                List<byte[]> oldLines = oldHash == null ? null : readLines(lines, oldHash, null);
+                List<byte[]> newLines = newHash == null ? null
+                        : readLines(lines, newHash, newInWorkingDir ? join(CWD, filename) : null);
+                UnifiedDiff.write(out, filename, oldLines, newLines);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
     /**
      * checkout a given branch.
      * @param branchName
@@ -244,7 +539,7 @@ public class Repository {
         }
 
         Commit commit = Commit.getCurrentCommit();
-        checkoutFile(commit, filename);
+        checkoutFile(commit, WorkingTree.normalize(filename));
     }
 
     /**
@@ -262,7 +557,7 @@ public class Repository {
             exitWithError("No commit with that id exists");
         }
 
-        checkoutFile(commit, filename);
+        checkoutFile(commit, WorkingTree.normalize(filename));
     }
 
     /**
@@ -279,12 +574,7 @@ public class Repository {
             exitWithError("A branch with that name already exists.");
         }
 
-        try {
-            branch.createNewFile();
-            writeContents(branch, Commit.getCurrentCommit().getHash());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        Head.updateRef(branch, null, Commit.getCurrentCommit().getHash());
     }
 
     /**
@@ -322,8 +612,9 @@ public class Repository {
             exitWithError("No commit with that id exists");
         }
 
+        String expected = Commit.getCurrentCommit().getHash();
         checkoutByCommit(commit);
-        writeContents(Head.getInstance().getBranch(), commit.getHash());
+        Head.updateRef(Head.getInstance().getBranch(), expected, commit.getHash());
     }
 
     /**
@@ -351,32 +642,273 @@ public class Repository {
 
 
         Commit mergeCommit = Commit.getCommitFromBranch(branch);
-        mergeCommit.setBranchName(branchName);
         verifyUntrackedWillBeOverwritten(mergeCommit);
 
         Commit currentCommit = Commit.getCurrentCommit();
-        currentCommit.setBranchName(currentBranchName);
+        mergeHelper(currentCommit, mergeCommit, branchName);
+    }
+
+    /**
+     * Copy the repository at PATH into the current directory, as a new repository
+     * with the remote "origin", and check out its master branch. With a DEPTH, only
+     * the newest DEPTH commits of each branch are copied, and the history of the
+     * clone is shallow. Without BLOBS, only commits and trees are copied, and the
+     * blobs are fetched from origin when first read, those checked out first.
+     * @param path the .gitlet directory of the repository to copy
+     * @param depth the number of commits of history to copy, or 0 for all of them
+     * @param blobs whether the blobs of every commit are copied
+     */
+    public static void clone(String path, int depth, boolean blobs) {
+        if (inRepo()) {
+            exitWithError("A Gitlet version-control system "
+                    + "already exists in the current directory.");
+        }
+        Remote.resolve(path);
+
+        setup();
+        // a clone which fails removes the repository it started, so that it may
+        // be retried; exitWithError exits without running the finally block
+        Thread cleanup = new Thread(() -> deleteAll(GITLET_DIR));
+        Runtime.getRuntime().addShutdownHook(cleanup);
+        boolean cloned = false;
+        try {
+            Remote.add("origin", path);
+            if (!blobs) {
+                Config.set(Remote.PARTIAL_CLONE_KEY, "origin");
+            }
+            String branchName = Remote.cloneBranches("origin", depth, blobs);
+            if (branchName == null) {
+                exitWithError("That remote does not have that branch.");
+            }
+
+            String hash = readContentsAsString(join(REF_DIR, "origin", branchName));
+            Head.updateRef(join(REF_DIR, branchName), null, hash);
+            Head.save(branchName);
+            TreeMap<String, Blob> checkoutBlobs = Commit.getCommitFromHash(hash).getBlobs();
+            verifyUntrackedWillBeOverwritten(WorkingTree.filenames(), Map.of(), checkoutBlobs);
+            Remote.fetchMissing(checkoutBlobs.values());
+            Parallel.forEach(checkoutBlobs.values(), Blob::copyToWorkingDir);
+            Stage.initStage();
+            cloned = true;
+        } finally {
+            Runtime.getRuntime().removeShutdownHook(cleanup);
+            if (!cloned) {
+                deleteAll(GITLET_DIR);
+            }
+        }
+    }
+
+    /**
+     * Delete FILE, and everything under it if it is a directory.
+     * @param file
+     */
+    private static void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child: files) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Save a remote repository under the given name. See Remote.
+     * @param name
+     * @param path the .gitlet directory of the remote repository
+     */
+    public static void addRemote(String name, String path) {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Remote.add(name, path);
+    }
 
-        mergeHelper(currentCommit, mergeCommit);
+    /**
+     * Remove the remote repository with the given name.
+     * @param name
+     */
+    public static void rmRemote(String name) {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Remote.remove(name);
+    }
+
+    /**
+     * Copy the commits of the given branch of a remote repository which are
+     * missing here into the branch REMOTENAME/BRANCHNAME.
+     * @param remoteName
+     * @param branchName
+     */
+    public static void fetch(String remoteName, String branchName) {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Remote.fetch(remoteName, branchName);
+    }
+
+    /**
+     * Copy the commits of the current branch which are missing in a remote
+     * repository there, and advance its given branch to the current commit.
+     * @param remoteName
+     * @param branchName
+     */
+    public static void push(String remoteName, String branchName) {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Remote.push(remoteName, branchName);
+    }
+
+    /**
+     * Fetch the given branch of a remote repository, then merge it into the current branch.
+     * @param remoteName
+     * @param branchName
+     */
+    public static void pull(String remoteName, String branchName) {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Remote.fetch(remoteName, branchName);
+        merge(remoteName + "/" + branchName);
+    }
+
+    /**
+     * Serve a fetch from another repository over standard input and output.
+     */
+    public static void uploadPack() {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Remote.uploadPack();
+    }
+
+    /**
+     * Serve a push from another repository over standard input and output.
+     */
+    public static void receivePack() {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Remote.receivePack();
+    }
+
+    /**
+     * Set a configuration value of the repository.
+     * @param key
+     * @param value
+     */
+    public static void config(String key, String value) {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Config.set(key, value);
+    }
+
+    /**
+     * Rewrite the index written with Java serialization in the binary format.
+     * Commits and trees written with Java serialization are left as they are,
+     * since their hash is the hash of those bytes and both formats can be read.
+     */
+    public static void migrate() {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Stage.getInstance().save();
+    }
+
+    /**
+     * Remove the objects which are unreachable from every branch and the staged files
+     * and older than the grace period, consolidate the other loose objects into the pack,
+     * rewrite the commit log and index without the removed commits, and write
+     * the reachability bitmaps of the branches.
+     */
+    public static void gc() {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        // two gc runs at the same time would write the same new pack
+        LockFile lock = LockFile.acquire(GarbageCollector.LOCK_FILE);
+        // exitWithError exits without running the finally block, so the lock
+        // is also released by a shutdown hook
+        Thread unlock = new Thread(lock::release);
+        Runtime.getRuntime().addShutdownHook(unlock);
+        GarbageCollector collector;
+        try {
+            collector = new GarbageCollector();
+            collector.mark();
+            collector.sweep();
+            if (collector.removedObjects() > 0) {
+                CommitLog.retain(Commit::exists);
+            }
+            CommitIndex.rebuild();
+            CommitGraph.getInstance().writeBitmaps(collector.branchTips());
+        } finally {
+            Runtime.getRuntime().removeShutdownHook(unlock);
+            lock.release();
+        }
+        System.out.println("Removed " + collector.removedObjects()
+                + " unreachable objects, reclaimed " + collector.reclaimedBytes() + " bytes.");
+    }
+
+    /**
+     * Serve commands sent by clients in this process until it is stopped, see Daemon.
+     */
+    public static void daemon() {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        Daemon.serve();
+    }
+
+    /**
+     * Stop the daemon, by sending it "daemon stop" as a client.
+     */
+    public static void stopDaemon() {
+        if (!inRepo()) {
+            exitWithError("Not in an initialized Gitlet directory.");
+        }
+
+        if (Client.forward(new String[] {"daemon", "stop"}) < 0) {
+            exitWithError("No daemon is running.");
+        }
     }
 
     /**
      * Diff files in the current branch, current branch and the split point.
      * @param currentCommit
      * @param mergeCommit
+     * @param branchName the branch of mergeCommit
      */
-    private static void mergeHelper(Commit currentCommit, Commit mergeCommit) {
-        Commit splitPoint = Commit.findSplitPoint(currentCommit, mergeCommit);
-        if (Commit.isSame(splitPoint, mergeCommit)) {
+    private static void mergeHelper(Commit currentCommit, Commit mergeCommit, String branchName) {
+        CommitGraph graph = CommitGraph.getInstance();
+        if (graph.isAncestor(mergeCommit.getHash(), currentCommit.getHash())) {
             System.out.println("Given branch is an ancestor of the current branch.");
             return;
         }
-        if (Commit.isSame(splitPoint, currentCommit)) {
-            Repository.checkoutBranch(mergeCommit.getBranchName());
+        if (graph.isAncestor(currentCommit.getHash(), mergeCommit.getHash())) {
+            Repository.checkoutBranch(branchName);
             System.out.println("Current branch fast-forwarded.");
             return;
         }
 
+        Commit splitPoint = Commit.findSplitPoint(currentCommit, mergeCommit);
+        if (splitPoint == null) {
+            exitWithError("The split point is beyond the shallow history.");
+        }
+
         Boolean hasConflicts = false;
         TreeMap<String, Blob> splitBlobs = splitPoint.getBlobs();
         TreeMap<String, Blob> headBlobs = currentCommit.getBlobs();
@@ -399,8 +931,7 @@ public class Repository {
                     otherBlob.copyToWorkingDir();
                     stage.addToStaged(otherBlob);
                 } else if (modifiedInHead && modifiedInOther && modifiedInDiffWays) {
-                    hasConflicts = true;
-                    conflictHelper(filename, headBlob.getContent(), otherBlob.getContent());
+                    hasConflicts |= mergeFile(filename, splitBlob, headBlob, otherBlob);
                 }
             }
             if (inHead && !inOther) {
@@ -408,8 +939,7 @@ public class Repository {
                 Boolean modifiedInHead = Blob.isNotSame(headBlob, splitBlob);
 
                 if (modifiedInHead) {
-                    hasConflicts = true;
-                    conflictHelper(filename, headBlob.getContent(), null);
+                    hasConflicts |= mergeFile(filename, splitBlob, headBlob, null);
                 } else {
                     stage.addToRemoval(filename);
                 }
@@ -419,8 +949,7 @@ public class Repository {
                 Boolean modifiedInOther = Blob.isNotSame(otherBlob, splitBlob);
 
                 if (modifiedInOther) {
-                    hasConflicts = true;
-                    conflictHelper(filename, null, otherBlob.getContent());
+                    hasConflicts |= mergeFile(filename, splitBlob, null, otherBlob);
                 }
             }
 
@@ -435,45 +964,62 @@ public class Repository {
                 otherBlob.copyToWorkingDir();
                 stage.addToStaged(otherBlob);
             } else if (Blob.isNotSame(otherBlob, headBlob)) {
-                hasConflicts = true;
-                conflictHelper(filename, headBlob.getContent(), otherBlob.getContent());
+                hasConflicts |= mergeFile(filename, null, headBlob, otherBlob);
             }
         }
 
-        currentCommit.merge(mergeCommit);
+        currentCommit.merge(mergeCommit, branchName);
         if (hasConflicts) {
             System.out.println("Encountered a merge conflict.");
         }
     }
 
     /**
-     * Handle conflict files in merge process.
+     * Merge the versions of a file in the current and the given branch line by line
+     * against its version in the split point, write the result to the working directory
+     * and stage it. Overlapping changes are marked as conflicts. Returns whether
+     * the file has conflicts. Any version may be null, if the file does not exist in it.
      * @param filename
-     * @param headFile
-     * @param otherFile
+     * @param splitBlob
+     * @param headBlob
+     * @param otherBlob
+     * @return
      */
-    private static void conflictHelper(String filename, File headFile, File otherFile) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("<<<<<<< HEAD\n");
-        if (headFile != null) {
-            sb.append(readContentsAsString(headFile));
+    private static boolean mergeFile(String filename, Blob splitBlob, Blob headBlob, Blob otherBlob) {
+        File file = WorkingTree.prepare(filename);
+        boolean conflicted;
+        try {
+            Diff.Lines lines = new Diff.Lines();
+            ThreeWayMerge merge = new ThreeWayMerge(readLines(lines, splitBlob),
+                    readLines(lines, headBlob), readLines(lines, otherBlob));
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+                conflicted = merge.writeTo(out);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
         }
-        sb.append("=======\n");
-        if (otherFile != null) {
-            sb.append(readContentsAsString(otherFile));
+
+        Blob blob = new Blob(filename, file);
+        blob.save();
+        Stage.getInstance().addToStaged(blob);
+        return conflicted;
+    }
+
+    private static List<byte[]> readLines(Diff.Lines lines, Blob blob) throws IOException {
+        if (blob == null) {
+            return new ArrayList<>();
         }
-        sb.append(">>>>>>>\n");
+        return readLines(lines, blob.getHash(), null);
+    }
 
-        try {
-            Stage stage = Stage.getInstance();
-            File file = join(CWD, filename);
-            file.createNewFile();
-            writeContents(file, sb.toString());
-            Blob blob = new Blob(filename, file);
-            blob.save();
-            stage.addToStaged(blob);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Read the lines of the blob with the given hash, from FILE if it is not null.
+     */
+    private static List<byte[]> readLines(Diff.Lines lines, String hash, File file)
+            throws IOException {
+        try (InputStream in = file == null ? Blob.openContent(hash)
+                : new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            return lines.read(in);
         }
     }
 
@@ -494,22 +1040,62 @@ public class Repository {
 
     /**
      * Checkout all the files tracked by the given commit.
+     * Only files which differ from the current commit, or whose working copy
+     * differs from it, are written, and they are written in parallel.
+     * Directories with the same tree in both commits which still hold the files
+     * of that tree are skipped along with everything under them.
+     * The numbers of files written and skipped are counted in Stats.
      * @param commit
      */
     private static void checkoutByCommit(Commit commit) {
-        verifyUntrackedWillBeOverwritten(commit);
-
-        TreeMap<String, Blob> currentBlobs = Commit.getCurrentCommit().getBlobs();
-        TreeMap<String, Blob> checkoutBlobs = commit.getBlobs();
-
+        Commit currentCommit = Commit.getCurrentCommit();
+        WorkingTree.Dir root = WorkingTree.walk();
+        TreeMap<String, Blob> currentBlobs;
+        TreeMap<String, Blob> checkoutBlobs;
+        if (currentCommit.getTree() == null || commit.getTree() == null) {
+            currentBlobs = currentCommit.getBlobs();
+            checkoutBlobs = commit.getBlobs();
+        } else {
+            Map<String, String> unchangedTrees = Stage.getInstance().unchangedTrees(root);
+            currentBlobs = new TreeMap<>();
+            checkoutBlobs = new TreeMap<>();
+            Tree.readFiles(currentCommit.getTree(), commit.getTree(),
+                    (path, hash) -> hash.equals(unchangedTrees.get(path)), currentBlobs, checkoutBlobs);
+        }
+        List<String> filenames = new ArrayList<>();
+        root.collectFiles(filenames, Set.of());
+        verifyUntrackedWillBeOverwritten(filenames, currentBlobs, checkoutBlobs);
+
+        // files tracked by both commits with the same content are only
+        // written if their working copy has been changed
+        List<String> unchanged = new ArrayList<>();
+        List<Blob> changed = new ArrayList<>();
         for (Blob blob: checkoutBlobs.values()) {
-            blob.copyToWorkingDir();
-            currentBlobs.remove(blob.getName());
+            Blob currentBlob = currentBlobs.remove(blob.getName());
+            if (currentBlob != null && !Blob.isNotSame(currentBlob, blob)
+                    && join(CWD, blob.getName()).exists()) {
+                unchanged.add(blob.getName());
+            } else {
+                changed.add(blob);
+            }
         }
 
+        List<String> hashes = Stage.getInstance().hashesOf(unchanged);
+        for (int i = 0; i < unchanged.size(); i++) {
+            Blob blob = checkoutBlobs.get(unchanged.get(i));
+            if (!blob.getHash().equals(hashes.get(i))) {
+                changed.add(blob);
+            }
+        }
+
+        Remote.fetchMissing(changed);
+        Parallel.forEach(changed, Blob::copyToWorkingDir);
         for (String filename: currentBlobs.keySet()) {
-            join(CWD, filename).delete();
+            WorkingTree.delete(filename);
         }
+        Stats.add("checkout.written", changed.size());
+        Stats.add("checkout.skipped", checkoutBlobs.size() - changed.size());
+        Stats.add("checkout.deleted", currentBlobs.size());
 
         Stage.initStage();
     }
@@ -521,7 +1107,6 @@ public class Repository {
         try {
             //create refs
             REF_DIR.mkdirs();
-            join(REF_DIR, "master").createNewFile();
 
             //create HEAD
             HEAD_DIR.createNewFile();
@@ -532,6 +1117,10 @@ public class Repository {
             OBJECT_DIR.mkdir();
             join(OBJECT_DIR, "commits").mkdir();
             join(OBJECT_DIR, "blobs").mkdir();
+
+            //create an empty commit log, so that commits are appended to it
+            CommitLog.LOG_FILE.getParentFile().mkdir();
+            writeContents(CommitLog.LOG_FILE, new byte[0]);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -545,6 +1134,52 @@ public class Repository {
         return GITLET_DIR.exists();
     }
 
+    /**
+     * Return the paths of files in the working directory which match the given
+     * glob pattern, or the path itself if it is not a pattern. A directory
+     * stands for all the files under it. Paths are first made relative to the
+     * working directory, see WorkingTree.normalize.
+     * @param pattern
+     * @return
+     */
+    private static List<String> expandGlob(String pattern) {
+        String path = WorkingTree.normalize(pattern);
+        if (!path.matches(".*[*?\\[{].*")) {
+            if (!join(CWD, path).isDirectory()) {
+                return List.of(path);
+            }
+            WorkingTree.Dir dir = WorkingTree.walk().find(path);
+            List<String> filenames = new ArrayList<>();
+            if (dir != null) {
+                dir.collectFiles(filenames, Set.of());
+            }
+            return filenames;
+        }
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+        List<String> filenames = new ArrayList<>();
+        for (String filename: WorkingTree.filenames()) {
+            if (matcher.matches(Paths.get(filename))) {
+                filenames.add(filename);
+            }
+        }
+
+        if (filenames.isEmpty()) {
+            exitWithError("File does not exist.");
+        }
+        return filenames;
+    }
+
+    /**
+     * Return a writer to standard output which only writes when it is flushed
+     * or its buffer is full, instead of once per line.
+     * @return
+     */
+    private static PrintWriter bufferedStdout() {
+        return new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16));
+    }
+
     /**
      * Print iterable items line by line.
      * @param items
@@ -561,10 +1196,20 @@ public class Repository {
      * @param commit
      */
     private static void verifyUntrackedWillBeOverwritten(Commit commit) {
-        TreeMap<String, Blob> currentBlobs = Commit.getCurrentCommit().getBlobs();
-        TreeMap<String, Blob> checkoutBlobs = commit.getBlobs();
-        List<String> filenames = plainFilenamesIn(CWD);
+        verifyUntrackedWillBeOverwritten(WorkingTree.filenames(),
+                Commit.getCurrentCommit().getBlobs(), commit.getBlobs());
+    }
 
+    /**
+     * Verify whether any of the files FILENAMES in the working directory
+     * is untracked and will be overwritten by checking out CHECKOUTBLOBS over CURRENTBLOBS.
+     * @param filenames
+     * @param currentBlobs
+     * @param checkoutBlobs
+     */
+    private static void verifyUntrackedWillBeOverwritten(Collection<String> filenames,
+                                                         Map<String, Blob> currentBlobs,
+                                                         Map<String, Blob> checkoutBlobs) {
         for (String filename: filenames) {
             if (!currentBlobs.containsKey(filename) && checkoutBlobs.containsKey(filename)) {
                 exitWithError("There is an untracked file in the way;"
@@ -3,8 +3,17 @@ package gitlet;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
 import static gitlet.Repository.*;
 import static gitlet.Utils.*;
@@ -15,34 +24,222 @@ import static gitlet.Utils.join;
  * @author Jiahao Qin
  */
 public class Stage implements Serializable {
+    private static final long serialVersionUID = -4216997863072996011L;
+
     private static File stage = join(GITLET_DIR, "index");
     private static Stage instance;
 
     public static synchronized Stage getInstance() {
         if (instance == null) {
-            instance = readObject(stage, Stage.class);
+            String version = versionOf(stage);
+            instance = decode(readContents(stage));
+            instance.loadedVersion = version;
+            instance.savedAt = modifiedTime(stage);
+            if (instance.stats == null) {
+                instance.stats = new TreeMap<>();
+            }
+            if (instance.dirs == null) {
+                instance.dirs = new TreeMap<>();
+            }
+            if (instance.watchedFiles == null) {
+                instance.watchedFiles = new TreeSet<>();
+            }
         }
         return instance;
     }
 
     /**
-     * Init stage area.
+     * Forget the loaded index, so that it is read again.
+     */
+    static synchronized void reset() {
+        instance = null;
+    }
+
+    /**
+     * Init stage area. The cached file and directory stats and the status token are kept.
      */
     public static void initStage() {
+        Stage newStage = new Stage();
+        if (stage.exists()) {
+            Stage oldStage = getInstance();
+            newStage.stats = oldStage.stats;
+            newStage.dirs = oldStage.dirs;
+            newStage.watchId = oldStage.watchId;
+            newStage.watchOffset = oldStage.watchOffset;
+            newStage.watchedFiles = oldStage.watchedFiles;
+            newStage.loadedVersion = oldStage.loadedVersion;
+        }
+        instance = newStage;
+        newStage.save();
+    }
+
+    /**
+     * Decode an index written in the binary format, or with Java serialization
+     * as the index was written before the binary format existed.
+     * @param bytes
+     * @return
+     */
+    static Stage decode(byte[] bytes) {
+        if (Codec.isSerialized(bytes)) {
+            return deserialize(bytes, Stage.class);
+        }
+
+        Codec.Reader reader = new Codec.Reader(bytes, Codec.STAGE);
+        Stage result = new Stage();
+        for (int i = reader.readInt(); i > 0; i--) {
+            String name = reader.readString();
+            result.staged.put(name, new Blob(name, reader.readHash(), null));
+        }
+        for (int i = reader.readInt(); i > 0; i--) {
+            result.removal.add(reader.readString());
+        }
+        for (int i = reader.readInt(); i > 0; i--) {
+            String name = reader.readString();
+            String hash = reader.readHash();
+            long size = reader.readVarint();
+            long modified = reader.readVarint();
+            String inode = reader.readString();
+            result.stats.put(name, new Stat(hash, size, modified, inode.isEmpty() ? null : inode));
+        }
+        if (reader.hasRemaining()) {
+            for (int i = reader.readInt(); i > 0; i--) {
+                String path = reader.readString();
+                result.dirs.put(path, new DirStat(reader.readHash(), reader.readVarint()));
+            }
+        }
+        if (reader.hasRemaining()) {
+            String watchId = reader.readString();
+            result.watchId = watchId.isEmpty() ? null : watchId;
+            result.watchOffset = reader.readVarint();
+            for (int i = reader.readInt(); i > 0; i--) {
+                result.watchedFiles.add(reader.readString());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the attributes of the given file, or null if it does not exist.
+     * @param file
+     * @return
+     */
+    private static BasicFileAttributes attributesOf(File file) {
         try {
-            stage.createNewFile();
-            writeObject(stage, new Stage());
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
         } catch (IOException e) {
-            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Return a string which changes whenever FILE is replaced or modified,
+     * or null if it does not exist.
+     * @param file
+     * @return
+     */
+    static String versionOf(File file) {
+        BasicFileAttributes attributes = attributesOf(file);
+        if (attributes == null) {
+            return null;
+        }
+        return attributes.fileKey() + ":" + attributes.size() + ":"
+                + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return the modification time of the given file in nanoseconds.
+     * @param file
+     * @return
+     */
+    private static long modifiedTime(File file) {
+        BasicFileAttributes attributes = attributesOf(file);
+        return attributes == null ? 0 : attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Represents the stat of a file in working directory when it was last hashed.
+     */
+    private static class Stat implements Serializable {
+        private static final long serialVersionUID = -5792772738660141845L;
+
+        /** The Sha1 hash of the file as a blob. */
+        private final String hash;
+        private final long size;
+        /** The modification time in nanoseconds. */
+        private final long modified;
+        /** The inode of the file, or null if the file system has none. */
+        private final String inode;
+
+        Stat(String hash, BasicFileAttributes attributes) {
+            this.hash = hash;
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            this.inode = attributes.fileKey() == null ? null : attributes.fileKey().toString();
+        }
+
+        Stat(String hash, long size, long modified, String inode) {
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+            this.inode = inode;
+        }
+
+        /**
+         * Verify whether the file still has the recorded size, modification time and inode.
+         * @param attributes
+         * @return
+         */
+        boolean matches(BasicFileAttributes attributes) {
+            String fileKey = attributes.fileKey() == null ? null : attributes.fileKey().toString();
+            return size == attributes.size()
+                    && modified == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && (inode == null ? fileKey == null : inode.equals(fileKey));
+        }
+    }
+
+    /**
+     * Represents a directory in working directory whose files were found to be
+     * the files of a tree, when the directory had the recorded modification time.
+     */
+    private static class DirStat implements Serializable {
+        private static final long serialVersionUID = 3349035558717030597L;
+
+        /** The Sha1 hash of the tree. */
+        private final String tree;
+        /** The modification time in nanoseconds. */
+        private final long modified;
+
+        DirStat(String tree, long modified) {
+            this.tree = tree;
+            this.modified = modified;
         }
     }
 
     private TreeMap<String, Blob> staged;
     private TreeSet<String> removal;
+    /** The stats of files in working directory, keyed by filename. */
+    private TreeMap<String, Stat> stats;
+    /** The stats of directories in working directory, keyed by path. */
+    private TreeMap<String, DirStat> dirs;
+    /** The id of the watcher of the status token, or null if there is none, see Watcher. */
+    private String watchId;
+    /** The position of the status token in the journal of the watcher. */
+    private long watchOffset;
+    /** The files in working directory at the status token. */
+    private TreeSet<String> watchedFiles;
+    /** The modification time of the index file when it was read, in nanoseconds. */
+    private transient long savedAt;
+    /** The version of the index file this was read from, see versionOf. */
+    private transient String loadedVersion;
+    /** Whether the stats have changed since the index was read. */
+    private transient boolean statsChanged;
 
     private Stage() {
         staged = new TreeMap<>();
         removal = new TreeSet<>();
+        stats = new TreeMap<>();
+        dirs = new TreeMap<>();
+        watchedFiles = new TreeSet<>();
     }
 
     /**
@@ -62,34 +259,314 @@ public class Stage implements Serializable {
     }
 
     /**
-     * Save Stage object.
+     * Encode the index in the binary format.
+     * @return
+     */
+    byte[] encode() {
+        Codec.Writer writer = new Codec.Writer(Codec.STAGE);
+        writer.writeVarint(staged.size());
+        for (Blob blob: staged.values()) {
+            writer.writeString(blob.getName()).writeHash(blob.getHash());
+        }
+        writer.writeVarint(removal.size());
+        for (String name: removal) {
+            writer.writeString(name);
+        }
+        writer.writeVarint(stats.size());
+        for (Map.Entry<String, Stat> entry: stats.entrySet()) {
+            Stat stat = entry.getValue();
+            writer.writeString(entry.getKey()).writeHash(stat.hash)
+                    .writeVarint(stat.size).writeVarint(stat.modified)
+                    .writeString(stat.inode == null ? "" : stat.inode);
+        }
+        writer.writeVarint(dirs.size());
+        for (Map.Entry<String, DirStat> entry: dirs.entrySet()) {
+            writer.writeString(entry.getKey()).writeHash(entry.getValue().tree)
+                    .writeVarint(entry.getValue().modified);
+        }
+        writer.writeString(watchId == null ? "" : watchId).writeVarint(watchOffset);
+        writer.writeVarint(watchedFiles.size());
+        for (String name: watchedFiles) {
+            writer.writeString(name);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Save Stage object. The index is locked and replaced atomically, and only if
+     * no other process has replaced it since it was read, otherwise the changes
+     * of one of them would be lost.
      */
     public void save() {
-        writeObject(stage, this);
+        LockFile lock = LockFile.acquire(stage);
+        if (!Objects.equals(versionOf(stage), loadedVersion)) {
+            lock.rollback();
+            exitWithError("The index was changed by another gitlet process. Please try again.");
+        }
+        write(lock);
+    }
+
+    /**
+     * Save Stage object if the cached file stats have changed. The stats are only
+     * a cache, so they are not saved if another process holds or has replaced the index.
+     */
+    public void saveStats() {
+        if (!statsChanged) {
+            return;
+        }
+
+        LockFile lock = LockFile.tryAcquire(stage);
+        if (lock == null) {
+            return;
+        }
+        if (!Objects.equals(versionOf(stage), loadedVersion)) {
+            lock.rollback();
+            return;
+        }
+        write(lock);
+    }
+
+    private void write(LockFile lock) {
+        lock.write(encode());
+        lock.commit();
+        loadedVersion = versionOf(stage);
+        savedAt = modifiedTime(stage);
+        statsChanged = false;
+    }
+
+    /**
+     * Return the Sha1 hash of the file with the given name in working directory.
+     * The file is only read if its size, modification time or inode have changed
+     * since it was last hashed, or if it is racily clean: modified no earlier than
+     * the index was written, in which case a later change may not be visible in its stat.
+     * @param name
+     * @return
+     */
+    public String hashOf(String name) {
+        Stat stat = statOf(name);
+        recordStat(name, stat);
+        return stat.hash;
     }
 
     /**
-     * Add a file to stage for addition.
+     * Return the stat of the file with the given name, hashing the file
+     * unless its cached stat can be trusted. The index is not changed,
+     * so this may be called from many threads at once.
      * @param name
+     * @return
      */
-    public void add(String name) {
-        File file = new File(CWD, name);
-        if (!file.exists()) {
-            exitWithError("File does not exist.");
+    private Stat statOf(String name) {
+        File file = join(CWD, name);
+        BasicFileAttributes attributes = attributesOf(file);
+        Stat stat = stats.get(name);
+        if (stat != null && attributes != null && stat.matches(attributes)
+                && stat.modified < savedAt) {
+            return stat;
         }
 
-        Blob blob = new Blob(name, file);
-        Commit commit = Commit.getCurrentCommit();
-        TreeMap<String, Blob> blobs = commit.getBlobs();
+        return new Stat(Blob.hashOf(file), attributes);
+    }
 
-        Boolean tracked = blobs.containsKey(name);
-        if (!tracked || Blob.isNotSame(blobs.get(name), blob)) {
-            diffAndStaged(blob);
-        } else {
-            staged.remove(name);
+    /**
+     * Return the Sha1 hashes of the files with the given names in working directory,
+     * in the order of NAMES. Files whose cached stat cannot be trusted are hashed in parallel.
+     * @param names
+     * @return
+     */
+    public List<String> hashesOf(List<String> names) {
+        List<Stat> fileStats = Parallel.map(names, this::statOf);
+        List<String> hashes = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            recordStat(names.get(i), fileStats.get(i));
+            hashes.add(fileStats.get(i).hash);
         }
+        return hashes;
+    }
 
-        removal.remove(name);
+    private void recordStat(String name, Stat stat) {
+        if (stats.get(name) != stat) {
+            stats.put(name, stat);
+            statsChanged = true;
+        }
+    }
+
+    /**
+     * Verify whether the file with the given name in working directory
+     * has the same content as the given blob.
+     * @param name
+     * @param blob
+     * @return
+     */
+    public Boolean isSameContent(String name, Blob blob) {
+        return blob.getHash().equals(hashOf(name));
+    }
+
+    /**
+     * Drop the cached stats of all files but the given ones.
+     * @param names
+     */
+    public void retainStats(Set<String> names) {
+        if (stats.keySet().retainAll(names)) {
+            statsChanged = true;
+        }
+    }
+
+    /**
+     * Return the hashes of the trees whose files are still the files under
+     * directories of the working tree ROOT, keyed by the path of the directory.
+     * A directory is only in the result if it was recorded by recordTrees, and
+     * neither it nor any file or directory under it has changed its stat since.
+     * As for files, a directory or a file modified no earlier than the index was
+     * written may have changed since without a visible change in its stat,
+     * so it is never trusted.
+     * @param root
+     * @return
+     */
+    Map<String, String> unchangedTrees(WorkingTree.Dir root) {
+        Map<String, String> trees = new HashMap<>();
+        collectUnchangedTrees(root, trees);
+        return trees;
+    }
+
+    private boolean collectUnchangedTrees(WorkingTree.Dir dir, Map<String, String> trees) {
+        boolean unchanged = true;
+        for (WorkingTree.Dir subdir: dir.getDirs().values()) {
+            unchanged &= collectUnchangedTrees(subdir, trees);
+        }
+
+        DirStat dirStat = dirs.get(dir.getPath());
+        if (!unchanged || dirStat == null || dirStat.modified != dir.getModified()
+                || dir.getModified() >= savedAt) {
+            return false;
+        }
+        for (Map.Entry<String, BasicFileAttributes> entry: dir.getFiles().entrySet()) {
+            Stat stat = stats.get(dir.pathOf(entry.getKey()));
+            if (stat == null || !stat.matches(entry.getValue()) || stat.modified >= savedAt) {
+                return false;
+            }
+        }
+        trees.put(dir.getPath(), dirStat.tree);
+        return true;
+    }
+
+    /**
+     * Record that the files under the directories of the working tree ROOT are
+     * the files of the given trees, keyed by the path of the directory, replacing
+     * what was recorded before. The file stats of these files must be cached.
+     * @param trees
+     * @param root
+     */
+    void recordTrees(Map<String, String> trees, WorkingTree.Dir root) {
+        TreeMap<String, DirStat> newDirs = new TreeMap<>();
+        for (Map.Entry<String, String> entry: trees.entrySet()) {
+            WorkingTree.Dir dir = root.find(entry.getKey());
+            if (dir != null) {
+                newDirs.put(entry.getKey(), new DirStat(entry.getValue(), dir.getModified()));
+            }
+        }
+
+        if (!sameDirs(newDirs)) {
+            dirs = newDirs;
+            statsChanged = true;
+        }
+    }
+
+    private boolean sameDirs(TreeMap<String, DirStat> newDirs) {
+        if (newDirs.size() != dirs.size()) {
+            return false;
+        }
+        for (Map.Entry<String, DirStat> entry: newDirs.entrySet()) {
+            DirStat dirStat = dirs.get(entry.getKey());
+            if (dirStat == null || !dirStat.tree.equals(entry.getValue().tree)
+                    || dirStat.modified != entry.getValue().modified) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String getWatchId() {
+        return watchId;
+    }
+
+    long getWatchOffset() {
+        return watchOffset;
+    }
+
+    /**
+     * Return the files in working directory at the status token.
+     * @return
+     */
+    TreeSet<String> getWatchedFiles() {
+        return watchedFiles;
+    }
+
+    /**
+     * Record the status token at OFFSET in the journal of the watcher with
+     * the given ID, and FILES, the files in working directory at the token.
+     * @param id
+     * @param offset
+     * @param files
+     */
+    void recordWatch(String id, long offset, Set<String> files) {
+        if (!id.equals(watchId) || offset != watchOffset || !watchedFiles.equals(files)) {
+            watchId = id;
+            watchOffset = offset;
+            watchedFiles = new TreeSet<>(files);
+            statsChanged = true;
+        }
+    }
+
+    /**
+     * Return the Sha1 hash of the file with the given name in working directory
+     * as it was last hashed, without looking at the file, which must be known
+     * not to have changed since. The file is hashed as hashOf does if it never was.
+     * @param name
+     * @return
+     */
+    String cachedHashOf(String name) {
+        Stat stat = stats.get(name);
+        return stat == null ? hashOf(name) : stat.hash;
+    }
+
+    /**
+     * Add files to stage for addition. Files are hashed and their blobs are saved
+     * in parallel, and the index is saved once at the end.
+     * @param names
+     */
+    public void add(List<String> names) {
+        for (String name: names) {
+            if (!join(CWD, name).exists()) {
+                exitWithError("File does not exist.");
+            }
+        }
+
+        TreeMap<String, Blob> blobs = Commit.getCurrentCommit().getBlobs();
+        List<Stat> fileStats = Parallel.map(names, this::statOf);
+
+        // blobs to save, keyed by hash so that identical files are saved once
+        Map<String, Blob> unsaved = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            Stat stat = fileStats.get(i);
+            recordStat(name, stat);
+
+            Blob blob = new Blob(name, stat.hash, join(CWD, name));
+            Boolean tracked = blobs.containsKey(name);
+            if (!tracked || Blob.isNotSame(blobs.get(name), blob)) {
+                if (!staged.containsKey(name) || Blob.isNotSame(staged.get(name), blob)) {
+                    unsaved.putIfAbsent(blob.getHash(), blob);
+                    staged.put(name, blob);
+                }
+            } else {
+                staged.remove(name);
+            }
+
+            removal.remove(name);
+        }
+
+        // save blobs delta encoded against the tracked version of the file
+        Parallel.forEach(unsaved.values(), blob -> blob.save(blobs.get(blob.getName())));
         save();
     }
 
@@ -99,7 +576,6 @@ public class Stage implements Serializable {
      * @param name
      */
     public void rm(String name) {
-        File file = new File(CWD, name);
         Commit commit = Commit.getCurrentCommit();
         TreeMap<String, Blob> blobs = commit.getBlobs();
 
@@ -116,7 +592,7 @@ public class Stage implements Serializable {
 
         if (isTracked) {
             removal.add(name);
-            file.delete();
+            WorkingTree.delete(name);
         }
 
         save();
@@ -127,19 +603,7 @@ public class Stage implements Serializable {
     }
 
     public void addToRemoval(String key) {
-        File file = new File(CWD, key);
         removal.add(key);
-        file.delete();
-    }
-
-    private void diffAndStaged(Blob blob) {
-        String name = blob.getName();
-
-        if (staged.containsKey(name) && Blob.isSame(staged.get(name), blob)) {
-            return;
-        }
-
-        blob.save();
-        staged.put(name, blob);
+        WorkingTree.delete(key);
     }
 }
@@ -0,0 +1,37 @@
+package gitlet;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the work done by a command, for diagnosis.
+ * They are printed to standard error when gitlet runs with -Dgitlet.stats.
+ * @author Jiahao Qin
+ */
+class Stats {
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+
+    /**
+     * Add N to the counter with the given name.
+     * @param name
+     * @param n
+     */
+    static void add(String name, long n) {
+        COUNTERS.computeIfAbsent(name, k -> new LongAdder()).add(n);
+    }
+
+    /**
+     * Print all the counters, the commit cache statistics and the heap in use
+     * to standard error. With a collector which never collects, like Epsilon,
+     * the heap in use is everything the command allocated.
+     */
+    static void print() {
+        for (Map.Entry<String, LongAdder> entry: COUNTERS.entrySet()) {
+            System.err.println(entry.getKey() + ": " + entry.getValue().sum());
+        }
+        System.err.println(Commit.cacheStats());
+        Runtime runtime = Runtime.getRuntime();
+        System.err.println("heap.used: " + (runtime.totalMemory() - runtime.freeMemory()));
+    }
+}
@@ -0,0 +1,151 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges two versions of a file line by line against their common base, like diff3.
+ * Each version is diffed against the base; changes made on one side only are taken
+ * from that side, and changes made on both sides to overlapping or adjacent lines
+ * are taken if they are identical, or written between conflict markers otherwise.
+ * Lines outside conflicts are written once, unchanged.
+ * @author Jiahao Qin
+ */
+class ThreeWayMerge {
+    private static final byte[] HEAD_MARKER = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OTHER_MARKER = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    private final List<byte[]> base;
+    private final List<byte[]> head;
+    private final List<byte[]> other;
+    private final List<Diff.Hunk> headHunks;
+    private final List<Diff.Hunk> otherHunks;
+
+    /**
+     * Prepare the merge of HEAD and OTHER, two versions of BASE.
+     * Any of them may be empty, as for a file which does not exist.
+     * @param base
+     * @param head
+     * @param other
+     */
+    ThreeWayMerge(List<byte[]> base, List<byte[]> head, List<byte[]> other) {
+        this.base = base;
+        this.head = head;
+        this.other = other;
+        Diff.Lines lines = new Diff.Lines();
+        int[] baseNumbers = lines.number(base);
+        headHunks = Diff.diff(baseNumbers, lines.number(head));
+        otherHunks = Diff.diff(baseNumbers, lines.number(other));
+    }
+
+    /**
+     * Write the merged file to OUT. Returns whether it has conflicts.
+     * @param out
+     * @return
+     */
+    boolean writeTo(OutputStream out) throws IOException {
+        boolean conflicted = false;
+        int i = 0;
+        int j = 0;
+        int position = 0;
+        // the number of lines each side has gained before the current position
+        int headDelta = 0;
+        int otherDelta = 0;
+
+        while (i < headHunks.size() || j < otherHunks.size()) {
+            // the next group of changes: overlapping or adjacent hunks of either side
+            int lo = Math.min(i < headHunks.size() ? headHunks.get(i).aStart : Integer.MAX_VALUE,
+                    j < otherHunks.size() ? otherHunks.get(j).aStart : Integer.MAX_VALUE);
+            int hi = lo;
+            int firstHead = i;
+            int firstOther = j;
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                if (i < headHunks.size() && headHunks.get(i).aStart <= hi) {
+                    hi = Math.max(hi, headHunks.get(i++).aEnd);
+                    grown = true;
+                }
+                if (j < otherHunks.size() && otherHunks.get(j).aStart <= hi) {
+                    hi = Math.max(hi, otherHunks.get(j++).aEnd);
+                    grown = true;
+                }
+            }
+
+            writeLines(out, base, position, lo);
+            int[] headRange = range(headHunks, firstHead, i, lo, hi, headDelta);
+            int[] otherRange = range(otherHunks, firstOther, j, lo, hi, otherDelta);
+            if (firstOther == j) {
+                writeLines(out, head, headRange[0], headRange[1]);
+            } else if (firstHead == i || sameLines(headRange, otherRange)) {
+                writeLines(out, other, otherRange[0], otherRange[1]);
+            } else {
+                conflicted = true;
+                out.write(HEAD_MARKER);
+                writeSide(out, head, headRange[0], headRange[1]);
+                out.write(SEPARATOR);
+                writeSide(out, other, otherRange[0], otherRange[1]);
+                out.write(OTHER_MARKER);
+            }
+
+            headDelta = headRange[1] - hi;
+            otherDelta = otherRange[1] - hi;
+            position = hi;
+        }
+
+        writeLines(out, base, position, base.size());
+        return conflicted;
+    }
+
+    /**
+     * Return the lines {start, end} of a side which replace base lines [lo, hi),
+     * given the hunks [from, to) of the side in that range, and DELTA, the number of
+     * lines the side has gained before lo.
+     */
+    private static int[] range(List<Diff.Hunk> hunks, int from, int to, int lo, int hi, int delta) {
+        if (from == to) {
+            return new int[] {lo + delta, hi + delta};
+        }
+        Diff.Hunk first = hunks.get(from);
+        Diff.Hunk last = hunks.get(to - 1);
+        return new int[] {first.bStart - (first.aStart - lo), last.bEnd + (hi - last.aEnd)};
+    }
+
+    private boolean sameLines(int[] headRange, int[] otherRange) {
+        if (headRange[1] - headRange[0] != otherRange[1] - otherRange[0]) {
+            return false;
+        }
+        for (int k = 0; k < headRange[1] - headRange[0]; k++) {
+            if (!Arrays.equals(head.get(headRange[0] + k), other.get(otherRange[0] + k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeLines(OutputStream out, List<byte[]> lines, int from, int to)
+            throws IOException {
+        for (int k = from; k < to; k++) {
+            out.write(lines.get(k));
+        }
+    }
+
+    /**
+     * Write the lines of one side of a conflict, ending the last one with
+     * a line terminator if it has none, so that the marker after it stays on its own line.
+     */
+    private static void writeSide(OutputStream out, List<byte[]> lines, int from, int to)
+            throws IOException {
+        writeLines(out, lines, from, to);
+        if (to > from) {
+            byte[] last = lines.get(to - 1);
+            if (last.length > 0 && last[last.length - 1] != '\n') {
+                out.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package gitlet;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiPredicate;
+
+import static gitlet.Repository.OBJECT_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Represents a directory snapshot. A tree maps filenames to blob hashes and
+ * directory names to the hashes of their trees, so a commit only refers to a root tree.
+ * Trees are content addressed, so an unchanged directory is shared by every
+ * commit in which it is unchanged.
+ * @author Jiahao Qin
+ */
+public class Tree implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Read the tree with the given hash from its loose object,
+     * or from the pack if it has been packed.
+     * @param hash
+     * @return
+     */
+    public static Tree getTreeFromHash(String hash) {
+        File object = objectFile(hash);
+        return decode(object.exists() ? readContents(object) : Pack.read(hash));
+    }
+
+    /**
+     * Decode a tree written in the binary format, or with Java serialization
+     * as trees were written before the binary format existed.
+     * @param bytes
+     * @return
+     */
+    static Tree decode(byte[] bytes) {
+        if (Codec.isSerialized(bytes)) {
+            return deserialize(bytes, Tree.class);
+        }
+
+        Codec.Reader reader = new Codec.Reader(bytes, Codec.TREE);
+        Tree tree = new Tree();
+        for (int i = reader.readInt(); i > 0; i--) {
+            tree.blobs.put(reader.readString(), reader.readHash());
+        }
+        for (int i = reader.readInt(); i > 0; i--) {
+            tree.trees.put(reader.readString(), reader.readHash());
+        }
+        return tree;
+    }
+
+    /**
+     * Return the hashes of the blobs directly in this tree.
+     * @return
+     */
+    Collection<String> blobHashes() {
+        return blobs.values();
+    }
+
+    /**
+     * Return the hashes of the subtrees of this tree.
+     * @return
+     */
+    Collection<String> treeHashes() {
+        return trees.values();
+    }
+
+    /**
+     * Return all the files of the tree with the given hash, keyed by their path.
+     * @param hash
+     * @return
+     */
+    public static TreeMap<String, Blob> readFiles(String hash) {
+        TreeMap<String, Blob> files = new TreeMap<>();
+        readFiles(hash, "", files);
+        return files;
+    }
+
+    private static void readFiles(String hash, String prefix, TreeMap<String, Blob> files) {
+        Tree tree = getTreeFromHash(hash);
+        for (Map.Entry<String, String> entry: tree.blobs.entrySet()) {
+            String path = prefix + entry.getKey();
+            files.put(path, new Blob(path, entry.getValue(), null));
+        }
+        for (Map.Entry<String, String> entry: tree.trees.entrySet()) {
+            readFiles(entry.getValue(), prefix + entry.getKey() + "/", files);
+        }
+    }
+
+    /**
+     * Read the files of the tree with the given hash into FILES, keyed by their path,
+     * leaving out the directories, the root included, for which SKIP returns true.
+     * SKIP is given the path of a directory, "" for the root, and the hash of its tree.
+     * The trees of skipped directories are not read.
+     * @param hash
+     * @param skip
+     * @param files
+     */
+    static void readFiles(String hash, BiPredicate<String, String> skip,
+                          TreeMap<String, Blob> files) {
+        readFiles(hash, null, "", skip, files, null);
+    }
+
+    /**
+     * Read the files of the trees with hashes A and B, either of which may be null,
+     * into AFILES and BFILES, leaving out the directories which have the same tree
+     * in both and for which SKIP returns true, as readFiles does for one tree.
+     * @param a
+     * @param b
+     * @param skip
+     * @param aFiles
+     * @param bFiles
+     */
+    static void readFiles(String a, String b, BiPredicate<String, String> skip,
+                          TreeMap<String, Blob> aFiles, TreeMap<String, Blob> bFiles) {
+        readFiles(a, b, "", skip, aFiles, bFiles);
+    }
+
+    /**
+     * Read the files of the trees A and B, in the directory with the given path.
+     * With no BFILES, only A is read, and its directories may be skipped on their own.
+     */
+    private static void readFiles(String a, String b, String path, BiPredicate<String, String> skip,
+                                  TreeMap<String, Blob> aFiles, TreeMap<String, Blob> bFiles) {
+        if (a != null && (bFiles == null || a.equals(b)) && skip.test(path, a)) {
+            return;
+        }
+
+        Tree treeA = a == null ? new Tree() : getTreeFromHash(a);
+        Tree treeB = b == null ? new Tree() : b.equals(a) ? treeA : getTreeFromHash(b);
+        String prefix = path.isEmpty() ? "" : path + "/";
+        for (Map.Entry<String, String> entry: treeA.blobs.entrySet()) {
+            String file = prefix + entry.getKey();
+            aFiles.put(file, new Blob(file, entry.getValue(), null));
+        }
+        Set<String> names = new TreeSet<>(treeA.trees.keySet());
+        if (bFiles != null) {
+            for (Map.Entry<String, String> entry: treeB.blobs.entrySet()) {
+                String file = prefix + entry.getKey();
+                bFiles.put(file, new Blob(file, entry.getValue(), null));
+            }
+            names.addAll(treeB.trees.keySet());
+        }
+        for (String name: names) {
+            readFiles(treeA.trees.get(name), bFiles == null ? null : treeB.trees.get(name),
+                    prefix + name, skip, aFiles, bFiles);
+        }
+    }
+
+    /**
+     * Write the tree which is the tree with the given hash, with ADDED files added
+     * and REMOVED files removed. Only the trees of directories containing changes are
+     * read and written; the others are shared with the given tree.
+     * Returns the hash of the new root tree.
+     * @param hash the hash of the root tree to update, or null for an empty tree
+     * @param added files to add, keyed by their path
+     * @param removed the paths of files to remove
+     * @return
+     */
+    public static String update(String hash, Map<String, Blob> added, Set<String> removed) {
+        return update(hash, added, removed, true);
+    }
+
+    /**
+     * Write the trees of the given files, keyed by their path.
+     * Returns the hash of the root tree.
+     * @param files
+     * @return
+     */
+    public static String write(Map<String, Blob> files) {
+        return update(null, files, Collections.emptySet(), true);
+    }
+
+    private static String update(String hash, Map<String, Blob> added,
+                                 Set<String> removed, boolean isRoot) {
+        Tree tree = hash == null ? new Tree() : getTreeFromHash(hash);
+        Map<String, Map<String, Blob>> addedInDirs = new TreeMap<>();
+        Map<String, Set<String>> removedInDirs = new TreeMap<>();
+
+        for (Map.Entry<String, Blob> entry: added.entrySet()) {
+            String path = entry.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                tree.blobs.put(path, entry.getValue().getHash());
+            } else {
+                addedInDirs.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), entry.getValue());
+                removedInDirs.computeIfAbsent(path.substring(0, slash), k -> new TreeSet<>());
+            }
+        }
+        for (String path: removed) {
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                tree.blobs.remove(path);
+            } else {
+                removedInDirs.computeIfAbsent(path.substring(0, slash), k -> new TreeSet<>())
+                        .add(path.substring(slash + 1));
+            }
+        }
+
+        for (Map.Entry<String, Set<String>> entry: removedInDirs.entrySet()) {
+            String dir = entry.getKey();
+            Map<String, Blob> addedInDir = addedInDirs.getOrDefault(dir, Collections.emptyMap());
+            String subtree = update(tree.trees.get(dir), addedInDir, entry.getValue(), false);
+            if (subtree == null) {
+                tree.trees.remove(dir);
+            } else {
+                tree.trees.put(dir, subtree);
+            }
+        }
+
+        if (!isRoot && tree.blobs.isEmpty() && tree.trees.isEmpty()) {
+            return null;
+        }
+        return tree.save();
+    }
+
+    private static File objectFile(String hash) {
+        return join(OBJECT_DIR, "trees", hash.substring(0, 2), hash.substring(2));
+    }
+
+    /** The blob hash of each file in the directory, keyed by filename. */
+    private TreeMap<String, String> blobs;
+    /** The tree hash of each subdirectory, keyed by directory name. */
+    private TreeMap<String, String> trees;
+
+    private Tree() {
+        blobs = new TreeMap<>();
+        trees = new TreeMap<>();
+    }
+
+    /**
+     * Encode this tree in the binary format.
+     * @return
+     */
+    byte[] encode() {
+        Codec.Writer writer = new Codec.Writer(Codec.TREE);
+        writer.writeVarint(blobs.size());
+        for (Map.Entry<String, String> entry: blobs.entrySet()) {
+            writer.writeString(entry.getKey()).writeHash(entry.getValue());
+        }
+        writer.writeVarint(trees.size());
+        for (Map.Entry<String, String> entry: trees.entrySet()) {
+            writer.writeString(entry.getKey()).writeHash(entry.getValue());
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Save the tree unless an identical tree has been saved, which is then
+     * freshened for gc instead, see Pack.freshen. Returns its hash.
+     * @return
+     */
+    private String save() {
+        byte[] content = encode();
+        String hash = sha1(content);
+        File object = objectFile(hash);
+        if (!Pack.freshen(hash, Pack.TREE)) {
+            object.getParentFile().mkdirs();
+            writeAtomically(object, content);
+        }
+        return hash;
+    }
+}
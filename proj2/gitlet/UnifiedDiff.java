@@ -0,0 +1,125 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the differences between two versions of a file in the unified format:
+ * a header naming the versions, then hunks of changed lines with up to three lines
+ * of context around them. Changes closer than twice the context share a hunk.
+ * Lines are written as they are, so any encoding passes through unchanged.
+ * @author Jiahao Qin
+ */
+class UnifiedDiff {
+    /** The number of unchanged lines shown around changes. */
+    private static final int CONTEXT = 3;
+    private static final byte[] NO_NEWLINE =
+            "\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Write the differences of the file NAME between lines A and lines B to OUT.
+     * A null version is a file which does not exist. Nothing is written if they are equal.
+     * @param out
+     * @param name
+     * @param a
+     * @param b
+     */
+    static void write(OutputStream out, String name, List<byte[]> a, List<byte[]> b)
+            throws IOException {
+        String aName = a == null ? "/dev/null" : "a/" + name;
+        String bName = b == null ? "/dev/null" : "b/" + name;
+        List<byte[]> aLines = a == null ? new ArrayList<>() : a;
+        List<byte[]> bLines = b == null ? new ArrayList<>() : b;
+
+        print(out, "diff --gitlet a/" + name + " b/" + name + "\n");
+        if (isBinary(aLines) || isBinary(bLines)) {
+            print(out, "Binary files " + aName + " and " + bName + " differ\n");
+            return;
+        }
+
+        Diff.Lines lines = new Diff.Lines();
+        List<Diff.Hunk> hunks = Diff.diff(lines.number(aLines), lines.number(bLines));
+        print(out, "--- " + aName + "\n");
+        print(out, "+++ " + bName + "\n");
+
+        int first = 0;
+        while (first < hunks.size()) {
+            int last = first;
+            while (last + 1 < hunks.size()
+                    && hunks.get(last + 1).aStart - hunks.get(last).aEnd <= 2 * CONTEXT) {
+                last++;
+            }
+            writeHunk(out, aLines, bLines, hunks.subList(first, last + 1));
+            first = last + 1;
+        }
+    }
+
+    /**
+     * Write one hunk of the unified diff, covering the given changes and their context.
+     */
+    private static void writeHunk(OutputStream out, List<byte[]> a, List<byte[]> b,
+                                  List<Diff.Hunk> changes) throws IOException {
+        Diff.Hunk first = changes.get(0);
+        Diff.Hunk last = changes.get(changes.size() - 1);
+        int aFrom = Math.max(0, first.aStart - CONTEXT);
+        int aTo = Math.min(a.size(), last.aEnd + CONTEXT);
+        int bFrom = first.bStart - (first.aStart - aFrom);
+        int bTo = last.bEnd + (aTo - last.aEnd);
+        print(out, "@@ -" + range(aFrom, aTo) + " +" + range(bFrom, bTo) + " @@\n");
+
+        int position = aFrom;
+        for (Diff.Hunk change: changes) {
+            writeLines(out, ' ', a, position, change.aStart);
+            writeLines(out, '-', a, change.aStart, change.aEnd);
+            writeLines(out, '+', b, change.bStart, change.bEnd);
+            position = change.aEnd;
+        }
+        writeLines(out, ' ', a, position, aTo);
+    }
+
+    /**
+     * Return the range of lines [from, to) as written in a hunk header:
+     * the first line counted from 1 and the number of lines, omitted if it is 1.
+     */
+    private static String range(int from, int to) {
+        int length = to - from;
+        if (length == 1) {
+            return String.valueOf(from + 1);
+        }
+        return (length == 0 ? from : from + 1) + "," + length;
+    }
+
+    private static void writeLines(OutputStream out, char prefix, List<byte[]> lines,
+                                   int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            byte[] line = lines.get(i);
+            out.write(prefix);
+            out.write(line);
+            if (line.length == 0 || line[line.length - 1] != '\n') {
+                out.write('\n');
+                out.write(NO_NEWLINE);
+            }
+        }
+    }
+
+    /**
+     * Verify whether LINES look like binary content, which has NUL bytes.
+     */
+    private static boolean isBinary(List<byte[]> lines) {
+        for (byte[] line: lines) {
+            for (byte c: line) {
+                if (c == 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void print(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
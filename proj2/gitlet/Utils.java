@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -10,7 +11,9 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import static java.nio.file.StandardOpenOption.APPEND;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
@@ -112,6 +115,24 @@ class Utils {
         return new String(readContents(file), StandardCharsets.UTF_8);
     }
 
+    /** Write CONTENT to a temporary file next to FILE, then rename it to
+     *  FILE, so that FILE is never seen partially written. Use for files
+     *  which are only ever written with the same content, such as objects;
+     *  files whose content changes are replaced through a LockFile. The
+     *  file is flushed to disk with the next batch, see Fsync.
+     *  Throws IllegalArgumentException in case of problems. */
+    static void writeAtomically(File file, byte[] content) {
+        try {
+            Path temp = Files.createTempFile(file.getParentFile().toPath(), "tmp", null);
+            Files.write(temp, content);
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Fsync.later(file);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /** Write the result of concatenating the bytes in CONTENTS to FILE,
      *  creating or overwriting it as needed.  Each object in CONTENTS may be
      *  either a String or a byte array.  Throws IllegalArgumentException
@@ -177,6 +198,22 @@ class Utils {
         }
     }
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /** Write OBJ to FILE. */
     static void writeObject(File file, Serializable obj) {
         writeContents(file, serialize(obj));
@@ -266,6 +303,9 @@ class Utils {
         if (message != null && !message.equals("")) {
             System.out.println(message);
         }
+        if (Daemon.isServing()) {
+            throw new Daemon.CommandExit();
+        }
         System.exit(0);
     }
 }
@@ -0,0 +1,331 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Records the paths changed in the working directory into a journal, so that
+ * status only has to look at those paths. A watcher runs in the daemon when
+ * core.watch is true. The journal .gitlet/watch/journal starts with a line
+ * holding the id of the watcher, which is new whenever a watcher starts, followed
+ * by a line for each event: 'C' and the path of a file or directory which was
+ * created, changed or deleted, relative to the working directory, '!' when
+ * events may have been lost, or 'S' and the name of a cookie, see changesSince.
+ * A position in the journal of a watcher is a status token: the paths changed
+ * since a token are the paths after that position.
+ * @author Jiahao Qin
+ */
+class Watcher implements Runnable {
+    static final File WATCH_DIR = join(GITLET_DIR, "watch");
+    static final File JOURNAL_FILE = join(WATCH_DIR, "journal");
+
+    /** The size of the journal from which a new journal is started. */
+    private static final long MAX_JOURNAL_SIZE = 8 * 1024 * 1024;
+    /** The time to wait for a cookie to be journaled, in milliseconds. */
+    private static final long SYNC_TIMEOUT = 1000;
+
+    /** The watcher running in this process, or null. */
+    private static volatile Watcher running;
+
+    /**
+     * Represents the paths changed since a status token.
+     */
+    static class Changes {
+        /** The id of the watcher. */
+        private final String id;
+        /** The position in the journal after the changes. */
+        private final long offset;
+        /** The changed paths, or null if they are unknown. */
+        private final Set<String> paths;
+
+        Changes(String id, long offset, Set<String> paths) {
+            this.id = id;
+            this.offset = offset;
+            this.paths = paths;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Return the changed paths, or null if the paths changed since the token
+         * are unknown: the token belongs to another watcher, or events were lost.
+         * @return
+         */
+        Set<String> getPaths() {
+            return paths;
+        }
+    }
+
+    private final WatchService service;
+    /** The watched directories, relative to the working directory. */
+    private final Map<WatchKey, Path> dirs = new HashMap<>();
+    private final Path root = CWD.toPath();
+    private final Path cookies = WATCH_DIR.toPath();
+    private OutputStream journal;
+    private long journalSize;
+    /** Whether a directory could not be watched, so that any event may be lost. */
+    private boolean incomplete;
+
+    private Watcher() throws IOException {
+        service = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Start watching the working directory in the background if core.watch is true.
+     */
+    static synchronized void startIfEnabled() {
+        if (running != null || !Boolean.parseBoolean(Config.get("core.watch", "false"))) {
+            return;
+        }
+        try {
+            Watcher watcher = new Watcher();
+            WATCH_DIR.mkdirs();
+            watcher.register(watcher.root);
+            watcher.cookies.register(watcher.service, ENTRY_CREATE);
+            watcher.startJournal();
+            running = watcher;
+            Thread thread = new Thread(watcher, "gitlet-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (IOException e) {
+            System.err.println("Cannot watch the working directory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop the watcher running in this process, if any.
+     */
+    static synchronized void stop() {
+        if (running != null) {
+            try {
+                running.service.close();
+            } catch (IOException e) {
+                // the watcher thread ends anyway
+            }
+            running = null;
+        }
+    }
+
+    /**
+     * Register DIR and every directory under it, but .gitlet.
+     * A directory which cannot be registered makes the journal incomplete.
+     * @param dir
+     */
+    private void register(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) {
+                if (path.equals(GITLET_DIR.toPath())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                try {
+                    dirs.put(path.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), path);
+                } catch (IOException e) {
+                    incomplete = true;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Start a new journal with a new id, so that every older token is unusable.
+     */
+    private void startJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        byte[] header = (UUID.randomUUID() + "\n").getBytes(StandardCharsets.UTF_8);
+        writeAtomically(JOURNAL_FILE, header);
+        journal = new FileOutputStream(JOURNAL_FILE, true);
+        journalSize = header.length;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                StringBuilder lines = new StringBuilder();
+                List<String> cookieNames = new ArrayList<>();
+                handle(service.take(), lines, cookieNames);
+                // events signaled before a cookie must be journaled before it
+                for (WatchKey key = service.poll(); key != null; key = service.poll()) {
+                    handle(key, lines, cookieNames);
+                }
+                for (String cookie: cookieNames) {
+                    if (incomplete) {
+                        lines.append("!\n");
+                    }
+                    lines.append('S').append(cookie).append('\n');
+                }
+                append(lines);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        } catch (IOException e) {
+            System.err.println("Stopped watching the working directory: " + e.getMessage());
+        } finally {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                // nothing more is written
+            }
+        }
+    }
+
+    /**
+     * Add the journal lines of the events of KEY to LINES, and the names of the
+     * cookies created to COOKIENAMES, then reset KEY.
+     */
+    private void handle(WatchKey key, StringBuilder lines, List<String> cookieNames)
+            throws IOException {
+        Path dir = dirs.get(key);
+        for (WatchEvent<?> event: key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                lines.append("!\n");
+                continue;
+            }
+            Path name = (Path) event.context();
+            if (dir == null) {
+                // the journal itself is also written in the directory of the cookies
+                if (name.toString().startsWith("cookie-")) {
+                    cookieNames.add(name.toString());
+                }
+                continue;
+            }
+
+            Path path = dir.resolve(name);
+            if (event.kind() == ENTRY_CREATE
+                    && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // files created before the directory was registered are found by status
+                register(path);
+            }
+            String relative = root.relativize(path).toString().replace(File.separatorChar, '/');
+            if (relative.indexOf('\n') >= 0) {
+                lines.append("!\n");
+            } else if (!relative.equals(".gitlet")) {
+                lines.append('C').append(relative).append('\n');
+            }
+        }
+        if (!key.reset()) {
+            // the directory was deleted, which is journaled in its parent
+            dirs.remove(key);
+        }
+    }
+
+    private void append(StringBuilder lines) throws IOException {
+        if (lines.length() == 0) {
+            return;
+        }
+        if (journalSize > MAX_JOURNAL_SIZE) {
+            startJournal();
+        }
+        byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+        journal.write(bytes);
+        journalSize += bytes.length;
+    }
+
+    /**
+     * Return the paths changed since the position OFFSET in the journal of the
+     * watcher with the given ID, with a new token. Returns null if no watcher is
+     * running, in which case the whole working directory must be read.
+     * Events are journaled some time after the change, so a cookie file is
+     * created and the journal is read until its event, which comes after the
+     * events of every change made before.
+     * @param id the id of the watcher of the token, or null if there is none
+     * @param offset
+     * @return
+     */
+    static Changes changesSince(String id, long offset) {
+        if (!Boolean.parseBoolean(Config.get("core.watch", "false"))
+                || !JOURNAL_FILE.exists() || (running == null && !Daemon.isRunning())) {
+            return null;
+        }
+
+        File cookie = join(WATCH_DIR, "cookie-" + ProcessHandle.current().pid()
+                + "-" + System.nanoTime());
+        try (RandomAccessFile file = new RandomAccessFile(JOURNAL_FILE, "r")) {
+            cookie.createNewFile();
+            String journalId = file.readLine();
+            if (journalId == null) {
+                return null;
+            }
+            boolean sameWatcher = journalId.equals(id) && offset <= file.length();
+            long position = sameWatcher ? offset : file.getFilePointer();
+            Set<String> paths = new TreeSet<>();
+            boolean lost = !sameWatcher;
+
+            long deadline = System.currentTimeMillis() + SYNC_TIMEOUT;
+            byte[] buffer = new byte[0];
+            while (System.currentTimeMillis() < deadline) {
+                long length = file.length();
+                if (length > position) {
+                    buffer = new byte[(int) (length - position)];
+                    file.seek(position);
+                    file.readFully(buffer);
+                }
+                int start = 0;
+                for (int end = 0; end < buffer.length; end++) {
+                    if (buffer[end] != '\n') {
+                        continue;
+                    }
+                    String line = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+                    start = end + 1;
+                    if (line.startsWith("C")) {
+                        paths.add(line.substring(1));
+                    } else if (line.startsWith("!")) {
+                        lost = true;
+                    } else if (line.equals("S" + cookie.getName())) {
+                        return new Changes(journalId, position + start, lost ? null : paths);
+                    }
+                }
+                position += start;
+                buffer = new byte[0];
+                Thread.sleep(1);
+            }
+            return null;
+        } catch (IOException | InterruptedException e) {
+            return null;
+        } finally {
+            cookie.delete();
+        }
+    }
+}
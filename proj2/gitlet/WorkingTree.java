@@ -0,0 +1,306 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Utils.*;
+
+/**
+ * Represents the files of the working directory and its subdirectories, as read
+ * by a parallel walk. Files are named by their path relative to the working
+ * directory, with '/' between directory names, as in trees. The .gitlet
+ * directory is skipped, and so are symbolic links to directories.
+ * @author Jiahao Qin
+ */
+class WorkingTree {
+    /**
+     * Represents a directory of the working tree.
+     */
+    static class Dir {
+        /** The path of the directory, or "" for the working directory itself. */
+        private final String path;
+        /** The modification time of the directory in nanoseconds. */
+        private final long modified;
+        /** The attributes of the files directly in this directory, keyed by name. */
+        private final TreeMap<String, BasicFileAttributes> files = new TreeMap<>();
+        /** The subdirectories, keyed by name. */
+        private final TreeMap<String, Dir> dirs = new TreeMap<>();
+
+        private Dir(String path, long modified) {
+            this.path = path;
+            this.modified = modified;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        long getModified() {
+            return modified;
+        }
+
+        TreeMap<String, BasicFileAttributes> getFiles() {
+            return files;
+        }
+
+        TreeMap<String, Dir> getDirs() {
+            return dirs;
+        }
+
+        /**
+         * Return the path of the entry with the given name in this directory.
+         * @param name
+         * @return
+         */
+        String pathOf(String name) {
+            return path.isEmpty() ? name : path + "/" + name;
+        }
+
+        /**
+         * Return the directory with the given path under this directory,
+         * or null if there is none.
+         * @param relativePath
+         * @return
+         */
+        Dir find(String relativePath) {
+            Dir dir = this;
+            if (relativePath.isEmpty()) {
+                return dir;
+            }
+            for (String name: relativePath.split("/")) {
+                dir = dir.dirs.get(name);
+                if (dir == null) {
+                    return null;
+                }
+            }
+            return dir;
+        }
+
+        /**
+         * Add the paths of all the files under this directory to PATHS,
+         * leaving out the directories with paths in EXCLUDED.
+         * @param paths
+         * @param excluded
+         */
+        void collectFiles(Collection<String> paths, Set<String> excluded) {
+            if (excluded.contains(path)) {
+                return;
+            }
+            for (String name: files.keySet()) {
+                paths.add(pathOf(name));
+            }
+            for (Dir dir: dirs.values()) {
+                dir.collectFiles(paths, excluded);
+            }
+        }
+    }
+
+    /**
+     * Walk the working directory, reading subdirectories in parallel.
+     * @return the root directory
+     */
+    static Dir walk() {
+        return walk("");
+    }
+
+    /**
+     * Walk the directory with the given path in the working directory,
+     * reading subdirectories in parallel.
+     * @param path
+     * @return the directory, or null if there is no directory with that path
+     */
+    static Dir walk(String path) {
+        Path dir = join(CWD, path).toPath();
+        BasicFileAttributes attributes = attributesOf(dir);
+        if (attributes == null || !attributes.isDirectory()) {
+            return null;
+        }
+        return Parallel.invoke(new Walk(dir, path,
+                attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)));
+    }
+
+    /**
+     * Verify whether the entry with the given path in the working directory
+     * is a file, or a symbolic link to a file.
+     * @param path
+     * @return
+     */
+    static boolean isFile(String path) {
+        BasicFileAttributes attributes = attributesOf(join(CWD, path).toPath());
+        return attributes != null && attributes.isRegularFile();
+    }
+
+    /**
+     * Return the paths of all the files in the working directory, in order.
+     * @return
+     */
+    static List<String> filenames() {
+        List<String> paths = new ArrayList<>();
+        walk().collectFiles(paths, Set.of());
+        paths.sort(null);
+        return paths;
+    }
+
+    /**
+     * Return the given path of an entry of the working directory relative to it,
+     * as files are named in trees, or "" for the working directory itself. The path
+     * may be relative to the working directory or absolute, and may have "." and ".."
+     * names. Exits if the path is outside of the working directory or in .gitlet.
+     * @param path
+     * @return
+     */
+    static String normalize(String path) {
+        Path root = CWD.toPath().toAbsolutePath().normalize();
+        Path resolved;
+        try {
+            resolved = root.resolve(path).normalize();
+        } catch (InvalidPathException e) {
+            exitWithError("File does not exist.");
+            return null;
+        }
+        if (!resolved.startsWith(root)) {
+            exitWithError("That path is outside of the working directory.");
+        }
+        Path relative = root.relativize(resolved);
+        if (relative.startsWith(".gitlet")) {
+            exitWithError("That path is inside the .gitlet directory.");
+        }
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Verify that the given path of a file, as read from a tree, names a file
+     * in the working directory and not in .gitlet, so that it is safe to write.
+     * @param path
+     */
+    private static void checkPath(String path) {
+        if (path.isEmpty() || path.startsWith("/") || path.equals(".gitlet")
+                || path.startsWith(".gitlet/")
+                || (File.separatorChar != '/' && path.indexOf(File.separatorChar) >= 0)) {
+            throw error("Invalid path %s.", path);
+        }
+        for (String name: path.split("/", -1)) {
+            if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+                throw error("Invalid path %s.", path);
+            }
+        }
+    }
+
+    /**
+     * Return the file with the given path in the working directory,
+     * creating its parent directories if they do not exist.
+     * @param path
+     * @return
+     */
+    static File prepare(String path) {
+        checkPath(path);
+        File file = join(CWD, path);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory()) {
+            parent.mkdirs();
+        }
+        return file;
+    }
+
+    /**
+     * Delete the file with the given path in the working directory, and
+     * then its parent directories which are left empty.
+     * @param path
+     */
+    static void delete(String path) {
+        checkPath(path);
+        File file = join(CWD, path);
+        if (!file.delete()) {
+            return;
+        }
+        for (File dir = file.getParentFile(); !dir.equals(CWD); dir = dir.getParentFile()) {
+            // only deletes the directory if it is empty
+            if (!dir.delete()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return the attributes of the entry at PATH, following it if it is a symbolic
+     * link to a file, or null if it does not exist or is a link to a directory.
+     * @param path
+     * @return
+     */
+    private static BasicFileAttributes attributesOf(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path,
+                    BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isSymbolicLink()) {
+                return attributes;
+            }
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a directory, and its subdirectories as forked tasks.
+     */
+    private static class Walk extends RecursiveTask<Dir> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String path;
+        private final long modified;
+
+        Walk(Path dir, String path, long modified) {
+            this.dir = dir;
+            this.path = path;
+            this.modified = modified;
+        }
+
+        @Override
+        protected Dir compute() {
+            Dir result = new Dir(path, modified);
+            List<Walk> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry: entries) {
+                    String name = entry.getFileName().toString();
+                    BasicFileAttributes attributes = attributesOf(entry);
+                    if (attributes == null) {
+                        continue;
+                    }
+                    if (attributes.isRegularFile()) {
+                        result.files.put(name, attributes);
+                    } else if (attributes.isDirectory()
+                            && !(path.isEmpty() && name.equals(".gitlet"))) {
+                        Walk subtask = new Walk(entry, result.pathOf(name),
+                                attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+                        subtask.fork();
+                        subtasks.add(subtask);
+                    }
+                }
+            } catch (IOException e) {
+                // a directory removed while walking is left out
+            }
+
+            for (Walk subtask: subtasks) {
+                Dir sub = subtask.join();
+                result.dirs.put(sub.path.substring(sub.path.lastIndexOf('/') + 1), sub);
+            }
+            return result;
+        }
+    }
+}